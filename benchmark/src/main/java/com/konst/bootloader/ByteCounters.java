@@ -0,0 +1,21 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Счетчик обработанных байт, JMH выводит его как байты в секунду.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void clean() {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,74 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Запись Flash сжатыми блоками 'Z' против обычных блоков 'B' на медленном канале.
+ * Замеряются стирание и запись, без проверки, чтобы время канала в {@link LinkCounters}
+ * показывало только передачу прошивки. Имитатор распаковывает блоки как загрузчик.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int PAGE_SIZE = 128;
+    private static final int BLOCK_SIZE = 256;
+    private static final int LATENCY_MICROS = 2000;
+
+    @Param({"32", "128"})
+    public int sizeKb;
+
+    @Param({Images.DENSE, Images.MIXED})
+    public String layout;
+
+    @Param({"9600", "19200", "115200"})
+    public int baudRate;
+
+    @Param({"false", "true"})
+    public boolean compression;
+
+    private final BootloaderListener listener = new BootloaderAdapter();
+    private Images image;
+    private AVRDevice device;
+    private AVR109Simulator simulator;
+
+    @Setup(Level.Trial)
+    public void setUpImage() {
+        image = new Images(sizeKb * 1024, layout);
+        device = Images.device(sizeKb * 1024, PAGE_SIZE);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpSimulator() throws Exception {
+        simulator = new AVR109Simulator(listener, sizeKb * 1024, 1024, PAGE_SIZE, BLOCK_SIZE);
+        simulator.setLink(baudRate, LATENCY_MICROS, false);
+        simulator.setCompressionSupported(true); // Bootloader always can, programmer decides.
+        simulator.setCompression(compression);
+        simulator.doJob(device, new ByteArrayInputStream(image.getHex()));
+    }
+
+    @Benchmark
+    public AVR109Simulator write(ByteCounters bytes, LinkCounters link) throws Exception {
+        simulator.erase();
+        simulator.write();
+        bytes.bytes += sizeKb * 1024;
+        link.linkMicros = simulator.getLinkNanos() / 1000;
+        link.linkBytes = simulator.getBytesSent() + simulator.getBytesReceived();
+        link.commands = simulator.getCommandCount('B') + simulator.getCommandCount('Z');
+        return simulator;
+    }
+}
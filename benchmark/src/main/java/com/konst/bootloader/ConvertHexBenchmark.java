@@ -0,0 +1,31 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Преобразование шестнадцатеричной строки в число.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertHexBenchmark {
+    @Param({"1E", "950F", "0001FFFF"})
+    public String text;
+
+    private final Utility utility = new Utility();
+
+    @Benchmark
+    public int convertHex() throws Exception {
+        return utility.convertHex(text);
+    }
+}
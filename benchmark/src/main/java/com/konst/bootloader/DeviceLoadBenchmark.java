@@ -0,0 +1,71 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Загрузка описания микроконтроллера.
+ * Разбор XML AVR Studio сравнивается с чтением двоичного каталога.
+ * XML собран по образцу фаилов AVR Studio: параметры памяти идут после описания регистров.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceLoadBenchmark {
+    private static final int REGISTERS = 2000;
+    private static final int CATALOG_SIZE = 200;
+
+    private final BootloaderListener listener = new BootloaderAdapter();
+    private byte[] xml;
+    private byte[] catalog;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder("<?xml version=\"1.0\"?>\n<AVRPART>\n");
+        text.append("  <ADMIN><PART_NAME>ATmega328P</PART_NAME><SIGNATURE>")
+                .append("<ADDR000>$1E</ADDR000><ADDR001>$95</ADDR001><ADDR002>$0F</ADDR002></SIGNATURE></ADMIN>\n");
+        text.append("  <IO_MODULE>\n");
+        for (int i = 0; i < REGISTERS; i++) {
+            text.append("    <REGISTER_").append(i).append("><NAME>REG").append(i).append("</NAME><IO_ADDR>$")
+                    .append(Integer.toHexString(i & 0xff)).append("</IO_ADDR><MEM_ADDR>$")
+                    .append(Integer.toHexString(i)).append("</MEM_ADDR></REGISTER_").append(i).append(">\n");
+        }
+        text.append("  </IO_MODULE>\n");
+        text.append("  <MEMORY><PROG_FLASH>32768</PROG_FLASH><EEPROM>1024</EEPROM>\n");
+        text.append("    <BOOT_CONFIG><PAGESIZE>64</PAGESIZE><RWW_START_ADDR>$0</RWW_START_ADDR></BOOT_CONFIG></MEMORY>\n");
+        text.append("</AVRPART>\n");
+        xml = text.toString().getBytes("UTF-8");
+
+        DeviceCatalog devices = new DeviceCatalog();
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            devices.add(new AVRDevice(32768, 1024, 128, 0x1e, 0x90 + (i >> 8), i & 0xff));
+        }
+        devices.add(Images.device(32768, 128));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        devices.write(out);
+        catalog = out.toByteArray();
+    }
+
+    @Benchmark
+    public AVRDevice parseXml() throws Exception {
+        return new AVRDevice(new ByteArrayInputStream(xml), listener);
+    }
+
+    @Benchmark
+    public AVRDevice readCatalog() throws Exception {
+        return DeviceCatalog.read(new ByteArrayInputStream(catalog)).find(0x1e, 0x95, 0x0f);
+    }
+}
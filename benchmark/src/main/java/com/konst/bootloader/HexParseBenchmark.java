@@ -0,0 +1,59 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Разбор фаила прошивки Intel HEX.
+ * Сравнивает разбор без выделения памяти на строку с разбором по строкам.
+ * Счетчик bytes - байты текста HEX, в режиме Throughput это байты в секунду.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexParseBenchmark {
+    @Param({"8", "32", "128", "256"})
+    public int sizeKb;
+
+    @Param({Images.DENSE, Images.SPARSE})
+    public String layout;
+
+    private byte[] hex;
+    private int flashSize;
+    private final BootloaderListener listener = new BootloaderAdapter();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        flashSize = sizeKb * 1024;
+        hex = new Images(flashSize, layout).getHex();
+    }
+
+    @Benchmark
+    public HEXFile readFile(ByteCounters counters) throws Exception {
+        HEXFile hexFile = new HEXFile(flashSize, (byte) 0xff, listener);
+        hexFile.readFile(new ByteArrayInputStream(hex));
+        counters.bytes += hex.length;
+        return hexFile;
+    }
+
+    @Benchmark
+    public HEXFile readFileByLines(ByteCounters counters) throws Exception {
+        HEXFile hexFile = new HEXFile(flashSize, (byte) 0xff, listener);
+        new LineHEXParser(hexFile).readFile(new ByteArrayInputStream(hex));
+        counters.bytes += hex.length;
+        return hexFile;
+    }
+}
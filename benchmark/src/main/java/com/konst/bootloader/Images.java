@@ -0,0 +1,87 @@
+package com.konst.bootloader;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Образы прошивки для замеров.
+ * Плотный образ занимает всю Flash, разреженный - острова по 512 байт через каждые 2 КБ,
+ * смешанный занимает всю Flash, но половина записей - повторяющиеся 0x00 или 0xff, как таблицы и выравнивание.
+ */
+final class Images {
+    static final String DENSE = "dense";
+    static final String SPARSE = "sparse";
+    static final String MIXED = "mixed";
+    private static final int ISLAND = 512;
+    private static final int ISLAND_STEP = 2048;
+
+    private final byte[] flash;
+    private final byte[] hex;
+
+    /**
+     * @param size   размер Flash в байтах.
+     * @param layout {@link #DENSE}, {@link #SPARSE} или {@link #MIXED}.
+     */
+    Images(int size, String layout) {
+        flash = new byte[size];
+        Arrays.fill(flash, (byte) 0xff);
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size * 3);
+        int extended = -1;
+        boolean sparse = SPARSE.equals(layout);
+        boolean mixed = MIXED.equals(layout);
+        for (int address = 0; address < size; address += 16) {
+            if (sparse && address % ISLAND_STEP >= ISLAND) {
+                continue;
+            }
+            if (address >> 16 != extended) {
+                extended = address >> 16;
+                appendRecord(text, 0, 4, new byte[]{(byte) (extended >> 8), (byte) extended});
+            }
+            byte[] data = new byte[Math.min(16, size - address)];
+            random.nextBytes(data);
+            if (mixed && random.nextBoolean()) {
+                Arrays.fill(data, random.nextBoolean() ? (byte) 0x00 : (byte) 0xff);
+            }
+            System.arraycopy(data, 0, flash, address, data.length);
+            appendRecord(text, address & 0xffff, 0, data);
+        }
+        text.append(":00000001FF\n");
+        hex = text.toString().getBytes();
+    }
+
+    private static void appendRecord(StringBuilder text, int offset, int type, byte... data) {
+        int checksum = data.length + (offset >> 8) + (offset & 0xff) + type;
+        text.append(':');
+        appendByte(text, data.length);
+        appendByte(text, offset >> 8);
+        appendByte(text, offset);
+        appendByte(text, type);
+        for (byte b : data) {
+            appendByte(text, b);
+            checksum += b & 0xff;
+        }
+        appendByte(text, -checksum);
+        text.append('\n');
+    }
+
+    private static void appendByte(StringBuilder text, int value) {
+        text.append(Character.toUpperCase(Character.forDigit(value >> 4 & 0xf, 16)));
+        text.append(Character.toUpperCase(Character.forDigit(value & 0xf, 16)));
+    }
+
+    /** Содержимое Flash после программирования, 0xff вне образа. */
+    byte[] getFlash() {
+        return flash;
+    }
+
+    /** Текст образа в формате Intel HEX. */
+    byte[] getHex() {
+        return hex;
+    }
+
+    /** Описание микроконтроллера под размер образа. */
+    static AVRDevice device(int flashSize, int pageSize) {
+        return new AVRDevice(flashSize, 1024, pageSize, 0x1e, 0x95, 0x0f);
+    }
+}
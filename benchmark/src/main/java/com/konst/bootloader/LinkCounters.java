@@ -0,0 +1,26 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Счетчики имитируемого канала за один цикл программирования: время передачи,
+ * байты в обе стороны и команды записи/чтения. Цикл детерминирован, поэтому хранится
+ * значение последнего цикла, а не сумма за итерацию.
+ * Позволяют сравнивать режимы передачи независимо от скорости процессора.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class LinkCounters {
+    public long linkMicros;
+    public long linkBytes;
+    public long commands;
+
+    @Setup(Level.Iteration)
+    public void clean() {
+        linkMicros = linkBytes = commands = 0;
+    }
+}
@@ -0,0 +1,82 @@
+package com.konst.bootloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Программирование с проверкой через имитатор загрузчика AVR109.
+ * Замеряется doDeviceDependent: стирание, запись, чтение и сравнение Flash.
+ * Канал не ждет, время передачи только считается и выводится в {@link LinkCounters}.
+ * В режиме differential Flash уже содержит образ, остается чтение и сравнение страниц.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgramBenchmark {
+    private static final int PAGE_SIZE = 128;
+    private static final int BAUD_RATE = 115200;
+    private static final int LATENCY_MICROS = 2000;
+
+    @Param({"8", "32", "128", "256"})
+    public int sizeKb;
+
+    @Param({Images.DENSE, Images.SPARSE})
+    public String layout;
+
+    @Param({"0", "256"})
+    public int blockSize;
+
+    @Param({"1", "4"})
+    public int writeWindow;
+
+    @Param({"false", "true"})
+    public boolean differential;
+
+    private final BootloaderListener listener = new BootloaderAdapter();
+    private Images image;
+    private AVRDevice device;
+    private AVR109Simulator simulator;
+
+    @Setup(Level.Trial)
+    public void setUpImage() {
+        image = new Images(sizeKb * 1024, layout);
+        device = Images.device(sizeKb * 1024, PAGE_SIZE);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpSimulator() throws Exception {
+        simulator = new AVR109Simulator(listener, sizeKb * 1024, 1024, PAGE_SIZE, blockSize);
+        simulator.setLink(BAUD_RATE, LATENCY_MICROS, false);
+        simulator.setWriteWindow(writeWindow);
+        simulator.setDifferential(differential);
+        if (differential) {
+            simulator.setEraseOnBlockWrite(true);
+            simulator.setFlash(0, image.getFlash());
+        }
+        simulator.doJob(device, new ByteArrayInputStream(image.getHex()));
+    }
+
+    @Benchmark
+    public AVR109Simulator program(ByteCounters bytes, LinkCounters link) throws Exception {
+        simulator.doDeviceDependent();
+        bytes.bytes += sizeKb * 1024;
+        link.linkMicros = simulator.getLinkNanos() / 1000;
+        link.linkBytes = simulator.getBytesSent() + simulator.getBytesReceived();
+        link.commands = simulator.getCommandCount('B') + simulator.getCommandCount('g')
+                + simulator.getCommandCount('Z') + simulator.getCommandCount('C') + simulator.getCommandCount('R');
+        return simulator;
+    }
+}
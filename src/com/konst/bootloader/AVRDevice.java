@@ -2,10 +2,8 @@ package com.konst.bootloader;
 
 
 import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.IOException;
 import java.io.InputStream;
 
 //import com.kostya.weightcheckadmin.Utility;
@@ -18,8 +16,7 @@ import java.io.InputStream;
  * To change this template use File | Settings | File Templates.
  */
 public class AVRDevice {
-    private final HandlerBootloader handler;
-    final InputStream inputStreamFile;
+    private final BootloaderListener listener;
     private int flashSize;                                                              // Size of Flash memory in bytes.
     private int eepromSize;                                                             // Size of EEPROM memory in bytes.
     private int signature0;
@@ -28,63 +25,96 @@ public class AVRDevice {
     public int pageSize;                                                               // Flash page size.
 
     /* Constructor */
-    AVRDevice(InputStream inputStreamFile, HandlerBootloader _handler) throws Exception {
-        handler = _handler;
-        this.inputStreamFile = inputStreamFile;
+    AVRDevice(InputStream inputStreamFile, BootloaderListener _listener) throws Exception {
+        listener = _listener;
         flashSize = eepromSize = 0;
         //signature0 = signature1 = signature2 = 0;
         pageSize = -1;
-        readParametersFromAVRStudio();
+        readParametersFromAVRStudio(inputStreamFile);
+    }
+
+    /**
+     * Конструктор из записи каталога, без разбора XML.
+     * @param _flashSize  размер Flash в байтах.
+     * @param _eepromSize размер EEPROM в байтах.
+     * @param _pageSize   размер страницы Flash в байтах, -1 если неизвестен.
+     * @param sig0 Сигнатура 0.
+     * @param sig1 Сигнатура 1.
+     * @param sig2 Сигнатура 2.
+     */
+    AVRDevice(int _flashSize, int _eepromSize, int _pageSize, int sig0, int sig1, int sig2) {
+        listener = null;
+        flashSize = _flashSize;
+        eepromSize = _eepromSize;
+        pageSize = _pageSize;
+        signature0 = sig0;
+        signature1 = sig1;
+        signature2 = sig2;
     }
 
     /* Methods */
-    private void readParametersFromAVRStudio() throws Exception {
+    /**
+     * Прочитать параметры из фаила AVR Studio за один проход.
+     * Разбор заканчивается как только найдены все параметры, поток не перематывается.
+     * @param inputStreamFile поток фаила описания микроконтроллера.
+     * @throws Exception Ошибка разбора или нет нужных параметров.
+     */
+    private void readParametersFromAVRStudio(InputStream inputStreamFile) throws Exception {
         Utility Util = new Utility();
         XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(inputStreamFile, null);
 
-        flashSize = Integer.parseInt(getValue(xpp, "PROG_FLASH"));
-        eepromSize = Integer.parseInt(getValue(xpp, "EEPROM"));
-
-        if (exists(xpp, "BOOT_CONFIG")) {
-            pageSize = Integer.parseInt(getValue(xpp, "PAGESIZE"));
-            pageSize <<= 1; // We want pagesize in bytes.
-        }
-
-        signature0 = Util.convertHex(new StringBuilder(getValue(xpp, "ADDR000")).deleteCharAt(0).toString());
-        signature1 = Util.convertHex(new StringBuilder(getValue(xpp, "ADDR001")).deleteCharAt(0).toString());
-        signature2 = Util.convertHex(new StringBuilder(getValue(xpp, "ADDR002")).deleteCharAt(0).toString());
-
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Saving cached XML parameters...").sendToTarget();
-    }
+        String flash = null;
+        String eeprom = null;
+        String pages = null;
+        boolean bootConfig = false;
+        String[] signature = new String[3];
 
-    private String getValue(XmlPullParser xpp, String tag) throws IOException, XmlPullParserException {
-        inputStreamFile.reset();
-        xpp.setInput(inputStreamFile, null);
         int eventType = xpp.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.START_TAG) {
-                if (xpp.getName().equals(tag)) {
-                    return xpp.nextText();
+                String tag = xpp.getName();
+                if ("BOOT_CONFIG".equals(tag)) {
+                    bootConfig = true;
+                } else if (flash == null && "PROG_FLASH".equals(tag)) {
+                    flash = xpp.nextText();
+                } else if (eeprom == null && "EEPROM".equals(tag)) {
+                    eeprom = xpp.nextText();
+                } else if (pages == null && "PAGESIZE".equals(tag)) {
+                    pages = xpp.nextText();
+                } else if (tag.startsWith("ADDR00")) {
+                    int index = "ADDR000".equals(tag) ? 0 : "ADDR001".equals(tag) ? 1 : "ADDR002".equals(tag) ? 2 : -1;
+                    if (index >= 0 && signature[index] == null) {
+                        signature[index] = xpp.nextText();
+                    }
                 }
-            }
-            eventType = xpp.next();
-        }
-        return "";
-    }
 
-    private boolean exists(XmlPullParser xpp, String tag) throws IOException, XmlPullParserException {
-        inputStreamFile.reset();
-        xpp.setInput(inputStreamFile, null);
-        int eventType = xpp.getEventType();
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            if (eventType == XmlPullParser.START_TAG) {
-                if (xpp.getName().equals(tag)) {
-                    return true;
+			    /* All found? */
+                if (flash != null && eeprom != null && bootConfig && pages != null
+                        && signature[0] != null && signature[1] != null && signature[2] != null) {
+                    break;
                 }
             }
             eventType = xpp.next();
         }
-        return false;
+
+        if (flash == null || eeprom == null || signature[0] == null || signature[1] == null || signature[2] == null) {
+            throw new Exception("Device file does not contain Flash, EEPROM or signature parameters!");
+        }
+
+        flashSize = Integer.parseInt(flash);
+        eepromSize = Integer.parseInt(eeprom);
+
+        if (bootConfig && pages != null) {
+            pageSize = Integer.parseInt(pages);
+            pageSize <<= 1; // We want pagesize in bytes.
+        }
+
+        signature0 = Util.convertHex(new StringBuilder(signature[0]).deleteCharAt(0).toString());
+        signature1 = Util.convertHex(new StringBuilder(signature[1]).deleteCharAt(0).toString());
+        signature2 = Util.convertHex(new StringBuilder(signature[2]).deleteCharAt(0).toString());
+
+        listener.onLog("Device parameters read from XML file");
     }
 
     protected int getFlashSize() {
@@ -1,26 +1,71 @@
 package com.konst.bootloader;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 /**
  * Класс программатора микроконтролера
  */
 public abstract class AVRProgrammer {
-    private final HandlerBootloader handler;                        // для сообщений
+    static final int DEFAULT_TIMEOUT_MILLIS = 1000;                 // Reply of short command.
+    static final int DEFAULT_RETRIES = 3;
+    private static final int FLASH_BYTE_MICROS = 1100;              // Transfer of block byte at 9600 baud.
+    private static final int EEPROM_BYTE_MICROS = 4000;             // EEPROM write of byte, 3.4 ms on AVR.
+    private static final int DRAIN_MILLIS = 50;                     // Wait for stale replies when resynchronizing.
+    private static final byte PAD = (byte) 0xff;                    // Erased Flash, programming it changes no bits.
+    private static final int MAX_FRAME = 6 + 0xffff;                // Longest frame a broken size header may declare.
+    private static final int MAX_PAD_CHUNK = 4096;
+    private final BootloaderListener listener;                      // для сообщений
+    private final ProgressReporter progress;                        // Coalesced progress of current phase.
+    private final MetricsRecorder metrics = new MetricsRecorder();  // Timers and counters of link.
     private AVRDevice avrDevice;                                    // микроконтроллер
     private HEXFile hexFile;                                        // фаил прошивки
     private long pagesize;                                          // Flash page size.
     private int flashStartAddress;                                  // Limit Flash operations, -1 if not.
     private int flashEndAddress = -1;                               // ...to this address, inclusive, -1 if not.
-    private int eepromEndAddress = -1;
+    private int eepromEndAddress = -1;                              // Limit EEPROM operations to this address, -1 if not.
+    private HEXFile eepromFile;                                     // EEPROM data, null if EEPROM is not programmed.
+    private byte[] blockBuffer = new byte[8];                       // Reused frame buffer for commands.
+    private int writeWindow = 1;                                    // Block writes in flight before waiting for CR.
+    private int[] pendingBlocks = new int[1];                       // Addresses of blocks waiting for CR.
+    private int pendingHead;
+    private int pendingCount;
+    private boolean differential;                                   // Rewrite only changed pages, no chip erase.
+    private boolean verifyAll;                                      // Collect all mismatches, not only first.
+    private BootloaderSession session;                              // Capabilities of connected bootloader.
+    private final AddressTracker addressRegister = new AddressTracker(); // Bootloader address, to skip redundant 'A'.
+    private int queuedReplies;                                      // CRs expected for commands in buffer.
+    private int[] pendingReplies = new int[1];                      // CRs expected for each block in window.
+    private int frameLength;                                        // Longest frame sent since last synchronization.
+    private boolean pageErase;                                      // Bootloader erases page before block, broken block is rewritten.
+    private boolean flashDamaged;                                   // Broken block, Flash needs chip erase.
+    private boolean verified;                                       // Last run verified equal.
+    private boolean eepromVerified;                                 // EEPROM of last run verified equal or not programmed.
+    private HEXFile image;                                          // View of hexFile with range of this run.
+    private int imageStart;                                         // Address limits of this run, for progress.
+    private int imageEnd;
+    private volatile boolean cancelled;                             // Stop current step between blocks.
+    private ProgramJournal journal;                                 // Confirmed pages for resume, null if not resumable.
+    private String journalKey;                                      // Journal key of current image, null if not begun.
+    private int[] pendingSizes = new int[1];                        // Sizes of blocks waiting for CR.
+    private HEXFile pendingData;                                    // Firmware and range end of blocks in window, to resend.
+    private int pendingEnd;
+    private int timeout = DEFAULT_TIMEOUT_MILLIS;                   // Wait for reply of command.
+    private int retries = DEFAULT_RETRIES;                          // Repeats of block after lost reply.
+    private boolean compression;                                    // Offer compressed block writes in probe.
+    private byte[] packBuffer = new byte[0];                        // Compressed block data.
+    private int manifestAddress = -1;                               // EEPROM address of firmware manifest, -1 if not kept.
 
 
     /**
      * Конструктор программатора.
-     * @param _handler Класс Handler для вывода сообщений
+     * @param _listener слушатель для вывода сообщений
      */
-    public AVRProgrammer(HandlerBootloader _handler) {
-        handler = _handler;
+    public AVRProgrammer(BootloaderListener _listener) {
+        listener = _listener;
+        progress = new ProgressReporter(_listener);
     }
 
     /**
@@ -31,43 +76,339 @@ public abstract class AVRProgrammer {
 
     /**
      * Абстрактный метод принять байт.
-     * @return байт
+     * @return байт или -1, если ответа нет за время ожидания транспорта.
      */
     public abstract int getByte();
 
+    /**
+     * Принять байт с ожиданием не дольше заданного времени.
+     * По умолчанию вызывает {@link #getByte()} с временем ожидания самого транспорта,
+     * транспорт переопределяет метод, чтобы программатор задавал время ожидания каждой команды.
+     * @param timeoutMillis сколько ждать ответ, мс.
+     * @return байт или -1, если ответа нет.
+     */
+    public int getByte(int timeoutMillis) {
+        return getByte();
+    }
+
+    /**
+     * Послать массив байт одной передачей.
+     * По умолчанию посылает побайтно через {@link #sendByte(byte)},
+     * транспорт переопределяет метод если умеет передавать пакетом.
+     * @param buffer буфер с данными.
+     * @param offset смещение в буфере.
+     * @param length количество байт.
+     */
+    public void sendBytes(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            sendByte(buffer[i]);
+        }
+    }
+
+    /**
+     * Принять заданное количество байт.
+     * По умолчанию принимает побайтно через {@link #getByte()},
+     * транспорт переопределяет метод если умеет читать пакетом.
+     * @param buffer буфер для данных.
+     * @param offset смещение в буфере.
+     * @param length количество байт.
+     */
+    public void readFully(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            buffer[i] = (byte) getByte();
+        }
+    }
+
+    /**
+     * Принять байты с ожиданием не дольше заданного времени на все байты.
+     * По умолчанию принимает через {@link #readFully(byte[], int, int)} и считает, что приняты все байты,
+     * транспорт переопределяет метод, чтобы потерянный ответ повторялся, а не сравнивался.
+     * @param buffer        буфер для данных.
+     * @param offset        смещение в буфере.
+     * @param length        количество байт.
+     * @param timeoutMillis сколько ждать все байты, мс.
+     * @return Сколько байт принято до истечения времени.
+     */
+    public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+        readFully(buffer, offset, length);
+        return length;
+    }
+
+    /* Transport with metrics */
+    private void send(byte b) {
+        sendByte(b);
+        metrics.sent(b);
+    }
+
+    private void send(byte[] buffer, int offset, int length) {
+        frameLength = Math.max(frameLength, length);
+        sendBytes(buffer, offset, length);
+        metrics.sent(buffer, offset, length);
+    }
+
+    private int receive() {
+        return receive(timeout);
+    }
+
+    private int receive(int timeoutMillis) {
+        int b = getByte(timeoutMillis);
+        if (b == -1) {
+            metrics.timeout();
+        } else {
+            metrics.received(1);
+        }
+        return b;
+    }
+
+    private void receive(byte[] buffer, int offset, int length) {
+        if (!receive(buffer, offset, length, blockTimeout(length, FLASH_BYTE_MICROS))) {
+            Arrays.fill(buffer, offset, offset + length, (byte) -1); // Missing bytes are not stale replies.
+        }
+    }
+
+    private boolean receive(byte[] buffer, int offset, int length, int timeoutMillis) {
+        int count = read(buffer, offset, length, timeoutMillis);
+        metrics.received(count);
+        if (count < length) {
+            metrics.timeout();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Время ожидания ответа блочной команды.
+     * @param byteCount  размер блока в байтах.
+     * @param byteMicros время передачи или записи байта блока, мкс.
+     * @return Миллисекунды.
+     */
+    private int blockTimeout(int byteCount, int byteMicros) {
+        return timeout + (int) ((long) byteCount * byteMicros / 1000);
+    }
+
+    /**
+     * Установить глубину конвейера блочной записи.
+     * При значении больше 1 команды адреса и блока следующих блоков посылаются
+     * не дожидаясь CR на предыдущие, но не более заданного количества блоков.
+     * Загрузчик и транспорт должны успевать буферизировать принятые данные.
+     * @param window количество блоков без подтверждения, 1 - без конвейера.
+     */
+    public void setWriteWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Write window must be 1 or larger!");
+        }
+        writeWindow = window;
+    }
+
+    /**
+     * Включить дифференциальное программирование.
+     * Вместо стирания всей микросхемы страницы Flash читаются и сравниваются с прошивкой,
+     * переписываются только отличающиеся страницы. Требует поддержки блочного режима с блоком не меньше страницы,
+     * загрузчик должен стирать страницу перед записью блока. Иначе микросхема стирается и пишется вся прошивка.
+     * @param _differential true - писать только измененные страницы.
+     */
+    public void setDifferential(boolean _differential) {
+        differential = _differential;
+    }
+
+    /**
+     * Режим проверки Flash.
+     * @param all true - прочитать весь диапазон и собрать все несовпадения,
+     *            false - остановить проверку на первом несовпадающем блоке.
+     */
+    public void setVerifyAll(boolean all) {
+        verifyAll = all;
+    }
+
+    /**
+     * Время ожидания ответа загрузчика на команду.
+     * Для блочных команд добавляется время передачи и записи байт блока.
+     * Работает, если транспорт переопределяет {@link #getByte(int)} и {@link #read(byte[], int, int, int)}.
+     * @param millis миллисекунды.
+     */
+    public void setTimeout(int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Timeout must be 1 ms or longer!");
+        }
+        timeout = millis;
+    }
+
+    /**
+     * Сколько раз повторять блок после истечения времени ответа или без CR в ответе.
+     * Полностью прочитанный, но несовпадающий блок не перечитывается. Перед повтором загрузчик синхронизируется, повторы видны в {@link BootloaderMetrics#getRetries()}.
+     * @param _retries количество повторов одного блока, 0 - ошибка сразу прерывает программирование.
+     */
+    public void setRetries(int _retries) {
+        if (_retries < 0) {
+            throw new IllegalArgumentException("Retries must be 0 or more!");
+        }
+        retries = _retries;
+    }
+
+    /**
+     * Сжимать блоки записи Flash для медленного канала.
+     * Загрузчик опрашивается командой 'z', если он поддерживает сжатые блоки 'Z' в формате {@link PackBits},
+     * блоки посылаются сжатыми, иначе и для несжимаемых блоков посылаются обычные блоки 'B'.
+     * Сохраненные возможности загрузчика сбрасываются, вызывать между программированиями.
+     * @param enable true - предлагать сжатие загрузчику.
+     */
+    public void setCompression(boolean enable) {
+        compression = enable;
+        resetSession();
+    }
+
+    /**
+     * Хранить манифест установленной прошивки в EEPROM для пакетов изменений {@link DeltaPackage}.
+     * На время записи Flash манифест стирается, после проверки всей прошивки записывается хэш ее страниц.
+     * Область {@link DeltaPackage#MANIFEST_SIZE} байт не должна использоваться программой и данными EEPROM.
+     * @param address адрес манифеста в EEPROM, -1 - манифест не хранить.
+     */
+    public void setManifestAddress(int address) {
+        if (address < -1) {
+            throw new IllegalArgumentException("Manifest address must be -1 or EEPROM address!");
+        }
+        manifestAddress = address;
+    }
+
     private void setPagesize(long _pagesize) {
         pagesize = _pagesize;
     }
 
     private boolean chipErase() throws Exception {
+        addressRegister.invalidate();
         /* Send command 'e' */
-        sendByte((byte) 'e');
+        send((byte) 'e');
         /* Should return CR */
-        if (getByte() != '\r') {
+        if (receive() != '\r') {
             throw new Exception("Chip erase failed! Programmer did not return CR after 'e'-command.");
         }
         return true; // Indicate supported command.
     }
 
     private void readSignature(Integer... sig) {
-        /* Send command 's' */
-        sendByte((byte) 's');
-        /* Get actual signature */
-        sig[2] = getByte();
-        sig[1] = getByte();
-        sig[0] = getByte();
+        BootloaderSession s = getSession();
+        sig[2] = (int) s.getSignature2();
+        sig[1] = (int) s.getSignature1();
+        sig[0] = (int) s.getSignature0();
+    }
+
+    /**
+     * Возможности подключенного загрузчика.
+     * При первом вызове загрузчик опрашивается командами 'S', 's', 't', 'b' и 'a',
+     * дальше используются сохраненные значения. Если разрешен конвейер записи,
+     * все команды опроса посылаются одним пакетом.
+     *
+     * @return Возможности загрузчика.
+     */
+    public BootloaderSession getSession() {
+        if (session == null) {
+            long start = System.nanoTime();
+            session = probeSession(writeWindow > 1);
+            metrics.addPhase(BootloaderMetrics.Phase.IDENTIFY, System.nanoTime() - start);
+        }
+        return session;
+    }
+
+    /**
+     * Снимок замеров: время этапов, байты, команды и задержка ответов.
+     * Можно вызывать во время программирования из другого потока.
+     * @return Замеры с создания программатора или последнего {@link #resetMetrics()}.
+     */
+    public BootloaderMetrics getMetrics() {
+        return metrics.snapshot();
     }
 
-    private byte readPartCode() {
-	    /* Send command 't' */
-        sendByte((byte) 't');
-        return (byte) getByte();
+    /**
+     * Обнулить замеры, например перед следующим заданием.
+     */
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    /**
+     * Сбросить сохраненные возможности загрузчика, например после переподключения.
+     */
+    public void resetSession() {
+        session = null;
+        addressRegister.invalidate();
+        pendingCount = 0; // Replies of old connection never come.
+        queuedReplies = 0;
+    }
+
+    private BootloaderSession probeSession(boolean burst) {
+        byte[] commands = {'S', 's', 't', 'b', 'a', 'z'};
+        if (burst) {
+            send(commands, 0, compression ? commands.length : commands.length - 1);
+        }
+
+        /* Programmer ID, 7 characters */
+        if (!burst) {
+            send((byte) 'S');
+        }
+        char[] id = new char[7];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (char) receive();
+        }
+
+        /* Signature, last byte first */
+        if (!burst) {
+            send((byte) 's');
+        }
+        int sig2 = receive();
+        int sig1 = receive();
+        int sig0 = receive();
+
+        /* Supported device codes, terminated by 0 */
+        if (!burst) {
+            send((byte) 't');
+        }
+        byte[] codes = new byte[16];
+        int count = 0;
+        int code;
+        while ((code = receive()) != 0 && code != -1) {
+            if (count == codes.length) {
+                byte[] more = new byte[codes.length * 2];
+                System.arraycopy(codes, 0, more, 0, count);
+                codes = more;
+            }
+            codes[count++] = (byte) code;
+        }
+        byte[] partCodes = new byte[count];
+        System.arraycopy(codes, 0, partCodes, 0, count);
+
+        /* Block mode and block size */
+        if (!burst) {
+            send((byte) 'b');
+        }
+        int blockSize = 0;
+        if (receive() == 'Y') {
+            blockSize = receive() << 8 | receive(); // Bootloader block size.
+        }
+
+        /* Address autoincrement */
+        if (!burst) {
+            send((byte) 'a');
+        }
+        boolean autoincrement = receive() == 'Y';
+
+        /* Compressed block format, '?' from bootloaders without it */
+        boolean compressed = false;
+        if (compression) {
+            if (!burst) {
+                send((byte) 'z');
+            }
+            if (receive() == 'Y') {
+                compressed = receive() == PackBits.FORMAT && blockSize > 0;
+            }
+        }
+
+        return new BootloaderSession(String.valueOf(id), sig0, sig1, sig2, partCodes, blockSize, autoincrement, compressed);
     }
 
     private void writeFlashPage() throws Exception {
-        sendByte((byte) 'm');
+        send((byte) 'm');
 
-        if (getByte() != '\r') {
+        if (receive() != '\r') {
             throw new Exception("Writing Flash page failed! " + "Programmer did not return CR after 'm'-command.");
         }
     }
@@ -79,22 +420,25 @@ public abstract class AVRProgrammer {
             throw new Exception("Programmer pagesize is not set!");
         }
 
-	    /* Check block write support */
-        sendByte((byte) 'b');
-
-        if (getByte() == 'Y') {
-            handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Using block mode...").sendToTarget();
+	    /* Check block write support, page erasing bootloader needs whole page in block */
+        if (getSession().isBlockMode() && (!differential || isBlockPerPage())) {
+            listener.onLog("Using block mode...");
             return writeFlashBlock(data); // Finished writing.
         }
+        if (getSession().isBlockMode()) {
+            listener.onLog("Block is smaller than page, using page mode...");
+        }
 
 	    /* Get range from HEX file */
         int start = data.getRangeStart();
         int end = data.getRangeEnd(); // Data address range.
 
 	    /* Check autoincrement support */
-        sendByte((byte) 'a');
+        boolean autoincrement = getSession().isAutoincrement();                                                  // Bootloader supports address autoincrement?
 
-        boolean autoincrement = getByte() == 'Y';                                                                // Bootloader supports address autoincrement?
+        if (writeWindow > 1) {
+            return writeFlashPipelined(data, start, end, autoincrement);
+        }
 
 	    /* Set initial address */
         setAddress(start >> 1); // Flash operations use word addresses.
@@ -138,6 +482,8 @@ public abstract class AVRProgrammer {
                 setAddress(address - 2 >> 1); // Set to an address inside the page.
                 writeFlashPage();
                 setAddress(address >> 1);
+                progress.step(address);
+                checkCancelled(); // Page written, nothing left in page buffer.
             }
         }
 
@@ -153,166 +499,384 @@ public abstract class AVRProgrammer {
             writeFlashPage();
         }
 
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "").sendToTarget();
+        listener.onLog("");
         return true; // Indicate supported command.
     }
 
-    private void writeFlashHighByte(byte value) throws Exception {
-        sendByte((byte) 'C');
-        sendByte(value);
-
-        if (getByte() != '\r') {
-            throw new Exception("Writing Flash high byte failed! " + "Programmer did not return CR after 'C'-command.");
-        }
-    }
-
-    private void writeFlashLowByte(byte value) throws Exception {
-        sendByte((byte) 'c');
-        sendByte(value);
-
-        if (getByte() != '\r') {
-            throw new Exception("Writing Flash low byte failed! " + "Programmer did not return CR after 'c'-command.");
-        }
-    }
-
-    private boolean writeFlashBlock(HEXFile data) throws Exception {
-
-	    /* Get block size, assuming command 'b' just issued and 'Y' has been read */
-        int blockSize = getByte() << 8 | getByte(); // Bootloader block size.
+    /**
+     * Запись Flash побайтными командами с конвейером.
+     * Команды 'c', 'C', 'm' и адреса одной страницы посылаются одним пакетом,
+     * затем ответы CR принимаются все сразу.
+     * @param data          данные прошивки.
+     * @param start         первый адрес диапазона.
+     * @param end           последний адрес диапазона.
+     * @param autoincrement загрузчик сам увеличивает адрес.
+     * @return true - команда поддерживается.
+     * @throws Exception Программатор не ответил CR.
+     */
+    private boolean writeFlashPipelined(HEXFile data, int start, int end, boolean autoincrement) throws Exception {
+        ensureBlockBuffer((int) pagesize * 4 + 16); // Up to 8 command bytes per word of a page.
+        drainFlashBlocks(0);
 
-	    /* Get range from HEX file */
-        int start = data.getRangeStart();
-        int end = data.getRangeEnd(); // Data address range.
+	    /* Set initial address */
+        int pos = compileAddress(0, start >> 1); // Flash operations use word addresses.
 
 	    /* Need to write one odd byte first? */
         int address = start;
         if ((address & 1) == 1) {
-            setAddress(address >> 1); // Flash operations use word addresses.
-
 		    /* Use only high byte */
-            writeFlashLowByte((byte) 0xff); // No-write in low byte.
-            writeFlashHighByte(data.getData(address));
+            pos = putWord(pos, (byte) 0xff, data.getData(address)); // No-write in low byte.
             address++;
 
 		    /* Need to write page? */
             if (address % pagesize == 0 || address > end) {// Just passed page limit or no more bytes to write?
-
-                setAddress(address - 2 >> 1); // Set to an address inside the page.
-                writeFlashPage();
-                setAddress(address >> 1);
+                pos = putPageWrite(pos, address);
+                flushCommands(pos, address);
+                pos = 0;
             }
         }
 
-	    /* Need to write from middle to end of block first? */
-        int byteCount;
-        if (address % blockSize > 0) {// In the middle of a block?
+	    /* Write words */
+        while (end - address + 1 >= 2) {// More words left?
 
-            byteCount = blockSize - address % blockSize; // Bytes left in block.
+		    /* Need to set address again? */
+            if (!autoincrement) {
+                pos = compileAddress(pos, address >> 1);
+            }
 
-            if (address + byteCount - 1 > end) {// Is that past the write range?
+            pos = putWord(pos, data.getData(address), data.getData(address + 1));
+            address += 2;
 
-                byteCount = end - address + 1; // Bytes left in write range.
-                byteCount &= ~0x01; // Adjust to word count.
+		    /* Need to write page? */
+            if (address % pagesize == 0 || address > end) {// Just passed a page limit or no more bytes to write?
+                pos = putPageWrite(pos, address);
+                flushCommands(pos, address);
+                pos = 0;
+                checkCancelled(); // Page written, nothing left in page buffer.
             }
+        }
 
-            if (byteCount > 0) {
-                setAddress(address >> 1); // Flash operations use word addresses.
+	    /* Need to write one even byte before finished? */
+        if (address == end) {
+		    /* Use only low byte */
+            pos = putWord(pos, data.getData(address), (byte) 0xff); // No-write in high byte.
+            address += 2;
 
-			    /* Start Flash block write */
-                sendByte((byte) 'B');
-                sendByte((byte) (byteCount >> 8)); // Size, MSB first.
-                sendByte((byte) byteCount);
-                sendByte((byte) 'F'); // Flash memory.
+		    /* Write page */
+            pos = compileAddress(pos, address - 2 >> 1); // Set to an address inside the page.
+            blockBuffer[pos++] = (byte) 'm';
+            queuedReplies++;
+        }
+        flushCommands(pos, address);
 
-                while (byteCount > 0) {
+        listener.onLog("");
+        return true; // Indicate supported command.
+    }
 
-                    sendByte(data.getData(address));
-                    address++;
-                    byteCount--;
-                }
+    private int putWord(int pos, byte low, byte high) {
+        blockBuffer[pos++] = (byte) 'c';
+        blockBuffer[pos++] = low;
+        blockBuffer[pos++] = (byte) 'C';
+        blockBuffer[pos++] = high;
+        queuedReplies += 2;
+        advanceWord();
+        return pos;
+    }
 
-                if (getByte() != '\r') {
-                    throw new Exception("Writing Flash block failed! " + "Programmer did not return CR after 'BxxF'-command.");
-                }
+    private int putPageWrite(int pos, int address) {
+        pos = compileAddress(pos, address - 2 >> 1); // Set to an address inside the page.
+        blockBuffer[pos++] = (byte) 'm';
+        queuedReplies++;
+        return compileAddress(pos, address >> 1);
+    }
 
-                //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"#")); // Advance progress indicator.
+    /**
+     * Послать накопленные команды и принять их ответы CR.
+     * @param length  длина команд в буфере.
+     * @param address адрес после последнего слова пакета, для сообщения об ошибке.
+     * @throws Exception Программатор не ответил CR.
+     */
+    private void flushCommands(int length, int address) throws Exception {
+        if (length == 0) {
+            return;
+        }
+        int replies = queuedReplies;
+        queuedReplies = 0;
+        send(blockBuffer, 0, length);
+        receive(blockBuffer, 0, replies);
+        for (int i = 0; i < replies; i++) {
+            if (blockBuffer[i] != '\r') {
+                throw new Exception("Writing Flash page before 0x" + Integer.toHexString(address) + " failed! " + "Programmer did not return CR in command batch.");
             }
         }
+        progress.step(address);
+    }
 
-	    /* More complete blocks to write? */
-        while (end - address + 1 >= blockSize) {
-            byteCount = blockSize;
+    private void writeFlashHighByte(byte value) throws Exception {
+        send((byte) 'C');
+        send(value);
 
-            setAddress(address >> 1); // Flash operations use word addresses.
+        if (receive() != '\r') {
+            throw new Exception("Writing Flash high byte failed! " + "Programmer did not return CR after 'C'-command.");
+        }
+        advanceWord();
+    }
+
+    /**
+     * Послать команду чтения слова 'R'.
+     */
+    private void sendReadCommand() {
+        send((byte) 'R');
+        advanceWord();
+    }
 
-		    /* Start Flash block write */
-            sendByte((byte) 'B');
-            sendByte((byte) (byteCount >> 8)); // Size, MSB first.
-            sendByte((byte) byteCount);
-            sendByte((byte) 'F'); // Flash memory.
+    /**
+     * Загрузчик прошел слово командой 'C' или 'R'.
+     */
+    private void advanceWord() {
+        if (getSession().isAutoincrement()) {
+            addressRegister.advance(1);
+        }
+    }
 
-            while (byteCount > 0) {
-                sendByte(data.getData(address));
-                address++;
-                byteCount--;
-            }
+    /**
+     * Загрузчик прошел блок командой 'B' или 'g'.
+     * @param byteCount размер блока в байтах.
+     */
+    private void advanceBlock(int byteCount) {
+        if (getSession().isAutoincrement()) {
+            addressRegister.advance(byteCount >> 1);
+        } else {
+            addressRegister.invalidate(); // Not known how bootloader moves after block.
+        }
+    }
 
-            if (getByte() != '\r') {
-                throw new Exception("Writing Flash block failed! " + "Programmer did not return CR after 'BxxF'-command.");
-            }
+    private void writeFlashLowByte(byte value) throws Exception {
+        send((byte) 'c');
+        send(value);
 
-            handler.obtainMessage(HandlerBootloader.Result.MSG_UPDATE_DIALOG.ordinal(), address, 0).sendToTarget();
+        if (receive() != '\r') {
+            throw new Exception("Writing Flash low byte failed! " + "Programmer did not return CR after 'c'-command.");
         }
+    }
 
-	    /* Any bytes left in last block */
-        if (end - address + 1 >= 1) {
-            byteCount = end - address + 1; // Get bytes left to write.
-            if ((byteCount & 1) == 1) {
-                byteCount++; // Align to next word boundary.
-            }
+    private boolean writeFlashBlock(HEXFile data) throws Exception {
 
-            setAddress(address >> 1); // Flash operations use word addresses.
+	    /* Get block size from bootloader capabilities */
+        int blockSize = getSession().getBlockSize(); // Bootloader block size.
+        ensureBlockBuffer(blockSize);
+
+	    /* Skip blank pages, chip is erased, and pages written before interruption */
+        WritePlan plan = new WritePlan(data, (int) pagesize, journalKey != null ? journal : null);
+        listener.onLog("Writing " + plan.getPageCount() + " pages in " + plan.getRegions().size() + " regions...");
 
-		    /* Start Flash block write */
-            sendByte((byte) 'B');
-            sendByte((byte) (byteCount >> 8)); // Size, MSB first.
-            sendByte((byte) byteCount);
-            sendByte((byte) 'F'); // Flash memory.
-
-            while (byteCount > 0) {
-                if (address > end) {
-                    sendByte((byte) 0xff); // Don't write outside write range.
-                } else {
-                    sendByte(data.getData(address));
+        int end = data.getRangeEnd(); // Data address range.
+        for (WritePlan.Region region : plan.getRegions()) {
+            int address = region.getStart(); // Regions are page aligned.
+
+		    /* Write region in blocks, not crossing block boundaries */
+            while (address <= region.getEnd() && !flashDamaged) {
+                int byteCount = blockSize - address % blockSize; // Bytes left in block.
+                if (address + byteCount - 1 > region.getEnd()) {
+                    byteCount = region.getEnd() - address + 1; // Bytes left in region.
                 }
 
-                address++;
-                byteCount--;
+                checkCancelled();
+                sendFlashBlock(data, address, byteCount, end);
+                address += byteCount;
+                progress.step(address);
             }
+        }
+
+        drainFlashBlocks(0); // Wait for outstanding blocks.
+        return true; // Indicate supported command.
+    }
+
+    /**
+     * Записать блок во Flash одним кадром 'B'...'F'.
+     * @param data    данные прошивки.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @param end     последний адрес диапазона, байты за ним заполняются 0xff.
+     * @throws Exception Программатор не ответил CR.
+     */
+    private void sendFlashBlock(HEXFile data, int address, int byteCount, int end) throws Exception {
+        if (writeWindow > 1) {
+            queueFlashBlock(data, address, byteCount, end);
+            return;
+        }
+
+        writeBlock(data, address, byteCount, end, 0);
+    }
 
-            if (getByte() != '\r') {
-                throw new Exception("Writing Flash block failed! " + "Programmer did not return CR after 'BxxF'-command.");
+    /**
+     * Записать блок во Flash и дождаться CR, при потерянном ответе повторить блок.
+     * @param data    данные прошивки.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @param end     последний адрес диапазона, байты за ним заполняются 0xff.
+     * @param attempt номер первой попытки, 0 - блок еще не посылался.
+     * @throws Exception Программатор не ответил CR после всех повторов.
+     */
+    private void writeBlock(HEXFile data, int address, int byteCount, int end, int attempt) throws Exception {
+        for (; ; attempt++) {
+            if (sendAddress(address >> 1)) { // Flash operations use word addresses.
+
+		        /* Build Flash block write frame */
+                int length = putBlockFrame(data, 0, address, byteCount, end);
+                send(blockBuffer, 0, length);
+
+                if (receive(blockTimeout(byteCount, FLASH_BYTE_MICROS)) == '\r') {
+                    advanceBlock(byteCount);
+                    confirmBlock(address, byteCount);
+                    return;
+                }
             }
+            if (!retryFlash(attempt, "Writing Flash block at 0x" + Integer.toHexString(address) + " failed! " + "Programmer did not return CR after 'BxxF'-command.")) {
+                return; // Written again after chip erase.
+            }
+        }
+    }
 
-            //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"#"));
+    /**
+     * Отметить в журнале страницы подтвержденного блока.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @throws Exception Ошибка сохранения журнала.
+     */
+    private void confirmBlock(int address, int byteCount) throws Exception {
+        if (journalKey != null) {
+            journal.confirm(address, byteCount);
         }
+    }
 
-        //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,""));
-        return true; // Indicate supported command.
+    /**
+     * Поставить блок в конвейер записи.
+     * Адрес и блок посылаются одним кадром, ответы CR читаются позже в {@link #drainFlashBlocks(int)}.
+     * @param data    данные прошивки.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @param end     последний адрес диапазона, байты за ним заполняются 0xff.
+     * @throws Exception Программатор не ответил CR на один из предыдущих блоков.
+     */
+    private void queueFlashBlock(HEXFile data, int address, int byteCount, int end) throws Exception {
+        if (pendingBlocks.length != writeWindow) {
+            drainFlashBlocks(0);
+            pendingBlocks = new int[writeWindow];
+            pendingReplies = new int[writeWindow];
+            pendingSizes = new int[writeWindow];
+            pendingHead = 0;
+        }
+        drainFlashBlocks(writeWindow - 1); // Make room in the window.
+
+        int length = compileAddress(0, address >> 1); // Flash operations use word addresses.
+        length = putBlockFrame(data, length, address, byteCount, end);
+        send(blockBuffer, 0, length);
+        advanceBlock(byteCount);
+
+        int slot = (pendingHead + pendingCount) % pendingBlocks.length;
+        pendingData = data;
+        pendingEnd = end;
+        pendingBlocks[slot] = address;
+        pendingSizes[slot] = byteCount;
+        pendingReplies[slot] = queuedReplies + 1; // Address, if sent, and block.
+        queuedReplies = 0;
+        pendingCount++;
     }
 
-    private boolean readFlash(HEXFile data) throws Exception {
+    /**
+     * Принять ответы на блоки в конвейере записи.
+     * Каждый блок подтверждается CR на команду блока и CR на команду адреса, если она посылалась.
+     * @param limit сколько блоков можно оставить без подтверждения.
+     * @throws Exception Программатор не ответил CR после всех повторов, в сообщении адрес блока.
+     */
+    private void drainFlashBlocks(int limit) throws Exception {
+        while (pendingCount > limit) {
+            int address = pendingBlocks[pendingHead];
+            int byteCount = pendingSizes[pendingHead];
+            int replies = pendingReplies[pendingHead];
+            int wait = blockTimeout(byteCount, FLASH_BYTE_MICROS);
+
+            if (replies > 1 && receive(wait) != '\r' || receive(wait) != '\r') {
+                resendFlashBlocks();
+                continue;
+            }
+            pendingHead = (pendingHead + 1) % pendingBlocks.length;
+            pendingCount--;
+            confirmBlock(address, byteCount);
+        }
+    }
+
+    /**
+     * Повторить блоки конвейера после потерянного или искаженного ответа.
+     * Неизвестно, какие блоки после неподтвержденного записаны, поэтому они посылаются заново по одному.
+     * @throws Exception Программатор не ответил CR после всех повторов.
+     */
+    private void resendFlashBlocks() throws Exception {
+        int count = pendingCount;
+        int[] addresses = new int[count];
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            int slot = (pendingHead + i) % pendingBlocks.length;
+            addresses[i] = pendingBlocks[slot];
+            sizes[i] = pendingSizes[slot];
+        }
+
+        if (!retryFlash(0, "Writing Flash block at 0x" + Integer.toHexString(addresses[0]) + " failed! " + "Programmer did not return CR after 'BxxF'-command.")) {
+            return; // Written again after chip erase.
+        }
+        for (int i = 0; i < count && !flashDamaged; i++) {
+            writeBlock(pendingData, addresses[i], sizes[i], pendingEnd, i == 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * Записать в буфер кадр команды 'B'...'F' или сжатый кадр 'Z'...'F', если он короче.
+     * Сжатый кадр: 'Z', размер блока, 'F', размер сжатых данных, данные {@link PackBits}.
+     * @param data    данные прошивки.
+     * @param pos     позиция в буфере.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @param end     последний адрес диапазона, байты за ним заполняются 0xff.
+     * @return позиция в буфере после кадра.
+     * @throws Exception Адрес вне буфера прошивки.
+     */
+    private int putBlockFrame(HEXFile data, int pos, int address, int byteCount, int end) throws Exception {
+        blockBuffer[pos++] = (byte) 'B';
+        blockBuffer[pos++] = (byte) (byteCount >> 8); // Size, MSB first.
+        blockBuffer[pos++] = (byte) byteCount;
+        blockBuffer[pos++] = (byte) 'F'; // Flash memory.
+        int count = Math.max(0, Math.min(byteCount, end - address + 1));
+        data.copyData(address, blockBuffer, pos, count);
+        Arrays.fill(blockBuffer, pos + count, pos + byteCount, (byte) 0xff); // Don't write outside write range.
+
+	    /* Compress block if bootloader supports it and frame gets shorter */
+        if (getSession().isCompressed()) {
+            if (packBuffer.length < byteCount) {
+                packBuffer = new byte[byteCount];
+            }
+            int packed = PackBits.encode(blockBuffer, pos, byteCount, packBuffer, 0, byteCount - 2); // Two more header bytes.
+            if (packed != -1) {
+                blockBuffer[pos - 4] = (byte) 'Z';
+                blockBuffer[pos++] = (byte) (packed >> 8); // Compressed size, MSB first.
+                blockBuffer[pos++] = (byte) packed;
+                System.arraycopy(packBuffer, 0, blockBuffer, pos, packed);
+                return pos + packed;
+            }
+        }
+        return pos + byteCount;
+    }
+
+    private boolean readFlash(FlashVerifier data) throws Exception {
 
         if (pagesize == -1) {
             throw new Exception("Programmer pagesize is not set!");
         }
 
 	    /* Check block read support */
-        sendByte((byte) 'b');
-
-        if (getByte() == 'Y') {
-            handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Using block mode...").sendToTarget();
-            return readFlashBlock(data); // Finished writing.
+        if (getSession().isBlockMode()) {
+            listener.onLog("Using block mode...");
+            return readFlashBlock(data); // Finished reading.
         }
 
 	    /* Get range from HEX file */
@@ -320,9 +884,11 @@ public abstract class AVRProgrammer {
         long end = data.getRangeEnd(); // Data address range.
 
 	    /* Check autoincrement support */
-        sendByte((byte) 'a');
+        boolean autoincrement = getSession().isAutoincrement();                                                  // Bootloader supports address autoincrement?
 
-        boolean autoincrement = getByte() == 'Y';                                                                // Bootloader supports address autoincrement?
+        if (writeWindow > 1) {
+            return readFlashPipelined(data, (int) start, (int) end, autoincrement);
+        }
 
 	    /* Set initial address */
         setAddress(start >> 1); // Flash operations use word addresses.
@@ -331,52 +897,126 @@ public abstract class AVRProgrammer {
         long address = start;
         if ((address & 1) == 1) {
 		    /* Read both, but use only high byte */
-            sendByte((byte) 'R');
+            sendReadCommand();
 
-            data.setData(address, (byte) getByte()); // High byte.
-            getByte(); // Don t use low byte.
+            data.compare(address, (byte) receive()); // High byte.
+            receive(); // Don t use low byte.
             address++;
         }
 
 	    /* Get words */
-        while (end - address + 1 >= 2) {
+        while (end - address + 1 >= 2 && !data.isDone()) {
 		    /* Need to set address again? */
             if (!autoincrement) {
                 setAddress(address >> 1);
             }
 
 		    /* Get words */
-            sendByte((byte) 'R');
+            sendReadCommand();
 
-            data.setData(address + 1, (byte) getByte()); // High byte.
-            data.setData(address, (byte) getByte()); // Low byte.
+            byte high = (byte) receive(); // High byte.
+            data.compare(address, (byte) receive()); // Low byte.
+            data.compare(address + 1, high);
             address += 2;
-
-            /*if( address % MEM_PROGRESS_GRANULARITY == 0 )
-                handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"#"));// Advance progress indicator.*/
+            progress.step((int) address);
+            checkCancelled();
 
 
         }
 
 	    /* Need to read one even byte before finished? */
-        if (address == end) {
+        if (address == end && !data.isDone()) {
 		    /* Read both, but use only low byte */
-            sendByte((byte) 'R');
+            sendReadCommand();
 
-            getByte(); // Don t use high byte.
-            data.setData(address, (byte) getByte()); // Low byte.
+            receive(); // Don t use high byte.
+            data.compare(address, (byte) receive()); // Low byte.
         }
 
         //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,""));
         return true; // Indicate supported command.
     }
 
-    private boolean readFlashBlock(HEXFile data) throws Exception {
+    /**
+     * Чтение Flash командами 'R' с конвейером.
+     * Команды чтения слов одной страницы посылаются одним пакетом, ответы принимаются все сразу.
+     * @param data          с чем сравнивать прочитанные данные.
+     * @param start         первый адрес диапазона.
+     * @param end           последний адрес диапазона.
+     * @param autoincrement загрузчик сам увеличивает адрес.
+     * @return true - команда поддерживается.
+     * @throws Exception Ошибка адресации.
+     */
+    private boolean readFlashPipelined(FlashVerifier data, int start, int end, boolean autoincrement) throws Exception {
+        int words = Math.max(1, (int) pagesize / 2); // Words per batch.
+        ensureBlockBuffer(words * 5 + 8); // Address and 'R' per word, or CR and word in reply.
 
-	    /* Get block size, assuming command 'b' just issued and 'Y' has been read */
-        int blockSize = getByte() << 8 | getByte(); // Bootloader block size.
+	    /* Set initial address */
+        setAddress(start >> 1); // Flash operations use word addresses.
 
-	    /* Get range from HEX file */
+	    /* Need to read one odd byte first? */
+        int address = start;
+        if ((address & 1) == 1) {
+		    /* Read both, but use only high byte */
+            sendReadCommand();
+
+            data.compare(address, (byte) receive()); // High byte.
+            receive(); // Don t use low byte.
+            address++;
+        }
+
+	    /* Get words in batches */
+        while (end - address + 1 >= 2 && !data.isDone()) {
+            int count = Math.min(words, (end - address + 1) / 2);
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (!autoincrement) {
+                    pos = compileAddress(pos, address + i * 2 >> 1);
+                }
+                blockBuffer[pos++] = (byte) 'R';
+                advanceWord();
+            }
+            send(blockBuffer, 0, pos);
+
+            int replies = queuedReplies; // Address commands sent, only the first one may be skipped.
+            queuedReplies = 0;
+            receive(blockBuffer, 0, count * 2 + replies);
+            int reply = 0;
+            for (int i = 0; i < count; i++) {
+                if (replies > 0 && (i > 0 || replies == count) && blockBuffer[reply++] != '\r') {
+                    throw new Exception("Setting address for programming operations failed! " + "Programmer did not return CR after 'A'-command.");
+                }
+                data.compare(address, blockBuffer[reply + 1]); // Low byte.
+                data.compare(address + 1, blockBuffer[reply]); // High byte.
+                reply += 2;
+                address += 2;
+            }
+            progress.step(address);
+            checkCancelled();
+        }
+
+	    /* Need to read one even byte before finished? */
+        if (address == end && !data.isDone()) {
+            if (!autoincrement) {
+                setAddress(address >> 1);
+            }
+		    /* Read both, but use only low byte */
+            sendReadCommand();
+
+            receive(); // Don t use high byte.
+            data.compare(address, (byte) receive()); // Low byte.
+        }
+
+        return true; // Indicate supported command.
+    }
+
+    private boolean readFlashBlock(FlashVerifier data) throws Exception {
+
+	    /* Get block size from bootloader capabilities */
+        int blockSize = getSession().getBlockSize(); // Bootloader block size.
+        ensureBlockBuffer(blockSize);
+
+	    /* Get range from HEX file */
         int start = data.getRangeStart();
         int end = data.getRangeEnd(); // Data address range.
 
@@ -386,10 +1026,10 @@ public abstract class AVRProgrammer {
             setAddress(address >> 1); // Flash operations use word addresses.
 
 		    /* Use only high word */
-            sendByte((byte) 'R');
+            sendReadCommand();
 
-            data.setData(address, (byte) getByte()); // High byte.
-            getByte(); // Low byte.
+            data.compare(address, (byte) receive()); // High byte.
+            receive(); // Low byte.
             address++;
         }
 
@@ -405,112 +1045,479 @@ public abstract class AVRProgrammer {
                 byteCount &= ~0x01; // Adjust to word count.
             }
 
-            if (byteCount > 0) {
-                setAddress(address >> 1); // Flash operations use word addresses.
-
-			    /* Start Flash block read */
-                sendByte((byte) 'g');
-                sendByte((byte) (byteCount >> 8)); // Size, MSB first.
-                sendByte((byte) byteCount);
-                sendByte((byte) 'F'); // Flash memory.
-
-                while (byteCount > 0) {
-                    data.setData(address, (byte) getByte());
-                    address++;
-                    byteCount--;
-                }
-
-                //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"#"));// Advance progress indicator.
+            if (byteCount > 0 && !data.isDone()) {
+                receiveFlashBlock(data, address, byteCount, end);
+                address += byteCount;
+                progress.step(address);
             }
         }
 
 	    /* More complete blocks to read? */
-        while (end - address + 1 >= blockSize) {
-            byteCount = blockSize;
-
-            setAddress(address >> 1); // Flash operations use word addresses.
-
-		    /* Start Flash block read */
-            sendByte((byte) 'g');
-            sendByte((byte) (byteCount >> 8)); // Size, MSB first.
-            sendByte((byte) byteCount);
-            sendByte((byte) 'F'); // Flash memory.
-
-            while (byteCount > 0) {
-                data.setData(address, (byte) getByte());
-                address++;
-                byteCount--;
-            }
-            handler.obtainMessage(HandlerBootloader.Result.MSG_UPDATE_DIALOG.ordinal(), address, 0).sendToTarget();
+        while (end - address + 1 >= blockSize && !data.isDone()) {
+            receiveFlashBlock(data, address, blockSize, end);
+            address += blockSize;
+            progress.step(address);
+            checkCancelled();
         }
 
 	    /* Any bytes left in last block */
-        if (end - address + 1 >= 1) {
+        if (end - address + 1 >= 1 && !data.isDone()) {
             byteCount = end - address + 1; // Get bytes left to read.
             if ((byteCount & 1) == 1) {
                 byteCount++; // Align to next word boundary.
             }
 
-            setAddress(address >> 1); // Flash operations use word addresses.
+            receiveFlashBlock(data, address, byteCount, end);
+            //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"#"));
+        }
+
+        //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"\r\n"));
+        return true; // Indicate supported command.
+    }
+
+    /**
+     * Прочитать блок из Flash одним кадром 'g'...'F'.
+     * @param data    с чем сравнивать прочитанные данные.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @param end     последний адрес диапазона, байты за ним отбрасываются.
+     * @throws Exception Ошибка адресации.
+     */
+    private void receiveFlashBlock(FlashVerifier data, int address, int byteCount, int end) throws Exception {
+        int count = Math.min(byteCount, end - address + 1); // Don't read outside read range.
+        readBlock(address, byteCount); // Mismatch of complete block is not read again.
+        data.compare(address, blockBuffer, count);
+    }
 
-		    /* Start Flash block read */
-            sendByte((byte) 'g');
-            sendByte((byte) (byteCount >> 8)); // Size, MSB first.
-            sendByte((byte) byteCount);
-            sendByte((byte) 'F'); // Flash memory.
-
-            while (byteCount > 0) {
-                if (address > end) {
-                    getByte(); // Don't read outside write range.
-                } else {
-                    data.setData(address, (byte) getByte());
+    /**
+     * Прочитать блок из Flash в начало буфера кадра, при потерянных байтах повторить блок.
+     * @param address адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @throws Exception Блок не прочитан после всех повторов.
+     */
+    private void readBlock(int address, int byteCount) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            if (sendAddress(address >> 1)) { // Flash operations use word addresses.
+
+		        /* Start Flash block read */
+                blockBuffer[0] = (byte) 'g';
+                blockBuffer[1] = (byte) (byteCount >> 8); // Size, MSB first.
+                blockBuffer[2] = (byte) byteCount;
+                blockBuffer[3] = (byte) 'F'; // Flash memory.
+                send(blockBuffer, 0, 4);
+
+                if (receive(blockBuffer, 0, byteCount, blockTimeout(byteCount, FLASH_BYTE_MICROS))) {
+                    advanceBlock(byteCount);
+                    return;
                 }
+            }
+            retry(attempt, "Reading Flash block at 0x" + Integer.toHexString(address) + " failed! " + "Programmer did not return all bytes after 'gxxF'-command.");
+        }
+    }
 
-                address++;
-                byteCount--;
+    /**
+     * Записать отличающиеся байты EEPROM блоками 'B'...'E'.
+     * Каждый блок сначала читается, подряд идущие отличающиеся байты пишутся одним блоком.
+     * @param data данные EEPROM.
+     * @return Сколько байт записано.
+     * @throws Exception Ошибка программирования или программирование отменено.
+     */
+    private int writeEEPROMBlock(HEXFile data) throws Exception {
+        int blockSize = getSession().getBlockSize(); // Bootloader block size.
+        ensureBlockBuffer(blockSize);
+        byte[] contents = new byte[blockSize]; // Current device contents.
+        int end = data.getRangeEnd();
+        int changed = 0;
+
+        for (int address = data.getRangeStart(); address <= end; address += blockSize) {
+            checkCancelled();
+            int byteCount = Math.min(blockSize, end - address + 1);
+            readEEPROM(address, byteCount);
+            System.arraycopy(blockBuffer, 0, contents, 0, byteCount);
+
+		    /* Write runs of changed bytes, equal bytes are not rewritten */
+            int offset = 0;
+            int mismatch;
+            while ((mismatch = data.findMismatch(address + offset, contents, offset, byteCount - offset)) != -1) {
+                int from = mismatch - address;
+                int to = from + 1;
+                while (to < byteCount && data.getData(address + to) != contents[to]) {
+                    to++;
+                }
+                sendEEPROMBlock(data, mismatch, to - from);
+                changed += to - from;
+                offset = to;
             }
+            progress.step(address + byteCount);
+        }
+        return changed;
+    }
 
-            //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"#"));
+    /**
+     * Записать отличающиеся байты EEPROM командами 'd' и 'D', если загрузчик без блочного режима.
+     * Сначала читается весь диапазон, затем каждая серия отличающихся байт пишется командами 'D'
+     * подряд с одной командой адреса, адрес загрузчика увеличивается после каждой команды.
+     * @param data данные EEPROM.
+     * @return Сколько байт записано.
+     * @throws Exception Ошибка программирования или программирование отменено.
+     */
+    private int writeEEPROMBytes(HEXFile data) throws Exception {
+        int start = data.getRangeStart();
+        int end = data.getRangeEnd();
+        byte[] contents = new byte[end - start + 1]; // Current device contents.
+
+        setAddress(start); // EEPROM operations use byte addresses.
+        for (int address = start; address <= end; address++) {
+            checkCancelled();
+            send((byte) 'd');
+            contents[address - start] = (byte) receive();
+            addressRegister.advance(1);
         }
 
-        //handler.sendMessage(handler.obtainMessage(ActivityBootloader.MSG_LOG,"\r\n"));
+	    /* Write runs of changed bytes, equal bytes are not rewritten */
+        int changed = 0;
+        int offset = 0;
+        int mismatch;
+        while ((mismatch = data.findMismatch(start + offset, contents, offset, contents.length - offset)) != -1) {
+            checkCancelled();
+            setAddress(mismatch);
+            int address = mismatch;
+            for (; address <= end && data.getData(address) != contents[address - start]; address++) {
+                send((byte) 'D');
+                send(data.getData(address));
+                if (receive() != '\r') {
+                    addressRegister.invalidate();
+                    throw new Exception("Writing EEPROM byte at 0x" + Integer.toHexString(address) + " failed! " + "Programmer did not return CR after 'D'-command.");
+                }
+                addressRegister.advance(1);
+                changed++;
+            }
+            offset = address - start;
+            progress.step(address);
+        }
+        return changed;
+    }
+
+    /**
+     * Записать байты EEPROM одним кадром 'B'...'E'.
+     * @param data    данные EEPROM.
+     * @param address адрес первого байта.
+     * @param byteCount количество байт, не больше блока загрузчика.
+     * @throws Exception Программатор не ответил CR.
+     */
+    private void sendEEPROMBlock(HEXFile data, int address, int byteCount) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            if (sendAddress(address)) { // EEPROM operations use byte addresses.
+                blockBuffer[0] = (byte) 'B';
+                blockBuffer[1] = (byte) (byteCount >> 8); // Size, MSB first.
+                blockBuffer[2] = (byte) byteCount;
+                blockBuffer[3] = (byte) 'E'; // EEPROM memory.
+                data.copyData(address, blockBuffer, 4, byteCount);
+                send(blockBuffer, 0, 4 + byteCount);
+
+                if (receive(blockTimeout(byteCount, EEPROM_BYTE_MICROS)) == '\r') {
+                    addressRegister.advance(byteCount); // EEPROM address always increments.
+                    return;
+                }
+            }
+            retry(attempt, "Writing EEPROM block at 0x" + Integer.toHexString(address) + " failed! " + "Programmer did not return CR after 'BxxE'-command.");
+        }
+    }
+
+    /**
+     * Прочитать EEPROM блоками и сравнить по мере чтения.
+     * @param data с чем сравнивать прочитанные данные.
+     * @throws Exception Ошибка чтения или программирование отменено.
+     */
+    private void readEEPROMBlock(FlashVerifier data) throws Exception {
+        int blockSize = getSession().getBlockSize(); // Bootloader block size.
+        ensureBlockBuffer(blockSize);
+        int end = data.getRangeEnd();
+
+        for (int address = data.getRangeStart(); address <= end && !data.isDone(); address += blockSize) {
+            checkCancelled();
+            int byteCount = Math.min(blockSize, end - address + 1);
+            readEEPROM(address, byteCount);
+            data.compare(address, blockBuffer, byteCount);
+            progress.step(address + byteCount);
+        }
+    }
+
+    /**
+     * Прочитать EEPROM по байту командой 'd' и сравнить по мере чтения.
+     * @param data с чем сравнивать прочитанные данные.
+     * @throws Exception Ошибка чтения или программирование отменено.
+     */
+    private void readEEPROMBytes(FlashVerifier data) throws Exception {
+        setAddress(data.getRangeStart()); // EEPROM operations use byte addresses.
+        for (int address = data.getRangeStart(); address <= data.getRangeEnd() && !data.isDone(); address++) {
+            checkCancelled();
+            send((byte) 'd');
+            data.compare(address, (byte) receive());
+            addressRegister.advance(1);
+            progress.step(address + 1);
+        }
+    }
+
+    /**
+     * Прочитать байты EEPROM в начало буфера кадра, при потерянных байтах повторить блок.
+     * @param address адрес первого байта.
+     * @param byteCount количество байт, не больше блока загрузчика.
+     * @throws Exception Блок не прочитан после всех повторов.
+     */
+    private void readEEPROM(int address, int byteCount) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            if (sendAddress(address)) { // EEPROM operations use byte addresses.
+                blockBuffer[0] = (byte) 'g';
+                blockBuffer[1] = (byte) (byteCount >> 8); // Size, MSB first.
+                blockBuffer[2] = (byte) byteCount;
+                blockBuffer[3] = (byte) 'E'; // EEPROM memory.
+                send(blockBuffer, 0, 4);
+
+                if (receive(blockBuffer, 0, byteCount, blockTimeout(byteCount, FLASH_BYTE_MICROS))) {
+                    addressRegister.advance(byteCount); // EEPROM address always increments.
+                    return;
+                }
+            }
+            retry(attempt, "Reading EEPROM block at 0x" + Integer.toHexString(address) + " failed! " + "Programmer did not return all bytes after 'gxxE'-command.");
+        }
+    }
+
+    /**
+     * Дифференциальная запись Flash.
+     * Каждая страница диапазона читается и сравнивается с прошивкой, отличающиеся страницы переписываются.
+     * @param data данные прошивки.
+     * @return false - загрузчик не поддерживает блочный режим или блок меньше страницы.
+     * @throws Exception Ошибка программирования.
+     */
+    private boolean writeFlashDifferential(HEXFile data) throws Exception {
+
+        if (pagesize == -1) {
+            throw new Exception("Programmer pagesize is not set!");
+        }
+
+	    /* Check block support, pages are read and written as blocks */
+        if (!isBlockPerPage()) {
+            return false;
+        }
+        int blockSize = getSession().getBlockSize(); // Bootloader block size.
+        ensureBlockBuffer(blockSize);
+
+        int pageSize = (int) pagesize;
+        byte[] page = new byte[pageSize]; // Current device contents.
+        int end = data.getRangeEnd(); // Data address range.
+        int pages = 0;
+        int changed = 0;
+
+        for (int address = data.getRangeStart() - data.getRangeStart() % pageSize; address <= end && !flashDamaged; address += pageSize) {
+            checkCancelled();
+            pages++;
+
+		    /* Read page and rewrite it with one block */
+            readBlock(address, pageSize);
+            System.arraycopy(blockBuffer, 0, page, 0, pageSize);
+
+            if (!isPageEqual(data, page, address, end)) {
+                sendFlashBlock(data, address, pageSize, end);
+                changed++;
+            }
+            progress.step(address + pageSize);
+        }
+
+        drainFlashBlocks(0); // Wait for outstanding blocks.
+        listener.onLog("Changed " + changed + " of " + pages + " pages");
         return true; // Indicate supported command.
     }
 
-    private void setAddress(long address) throws Exception {
-	    /* Set current address */
+    /**
+     * Помещается ли страница в один блок загрузчика.
+     * Загрузчик для дифференциального программирования стирает страницу перед каждым блоком,
+     * поэтому страница пишется только одним блоком с ее начала.
+     * @return true - блочный режим с блоком не меньше страницы.
+     */
+    private boolean isBlockPerPage() {
+        return getSession().isBlockMode() && getSession().getBlockSize() >= pagesize;
+    }
+
+    private static boolean isPageEqual(HEXFile data, byte[] page, int address, int end) throws Exception {
+        int count = Math.min(page.length, end - address + 1);
+        if (data.findMismatch(address, page, 0, count) != -1) {
+            return false;
+        }
+        for (int i = count; i < page.length; i++) {
+            if (page[i] != (byte) 0xff) { // Written as 0xff outside range.
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Записать в буфер команду установки адреса 'A' или 'H'.
+     * @param pos     позиция в буфере.
+     * @param address адрес в словах.
+     * @return позиция в буфере после команды.
+     */
+    private int putAddress(int pos, long address) {
         if (address < 0x10000) {
-            sendByte((byte) 'A');
-            sendByte((byte) (address >> 8));
-            sendByte((byte) address);
+            blockBuffer[pos++] = (byte) 'A';
         } else {
-            sendByte((byte) 'H');
-            sendByte((byte) (address >> 16));
-            sendByte((byte) (address >> 8));
-            sendByte((byte) address);
+            blockBuffer[pos++] = (byte) 'H';
+            blockBuffer[pos++] = (byte) (address >> 16);
         }
+        blockBuffer[pos++] = (byte) (address >> 8);
+        blockBuffer[pos++] = (byte) address;
+        return pos;
+    }
 
-	    /* Should return CR */
-        if (getByte() != '\r') {
+    /**
+     * Записать в буфер команду адреса, если загрузчик еще не стоит на этом адресе.
+     * @param pos     позиция в буфере.
+     * @param address адрес в словах.
+     * @return позиция в буфере после команды.
+     */
+    private int compileAddress(int pos, long address) {
+        if (addressRegister.isAt(address)) {
+            addressRegister.skip();
+            return pos;
+        }
+        addressRegister.set(address);
+        queuedReplies++;
+        return putAddress(pos, address);
+    }
+
+    /**
+     * Подготовить буфер кадра блочной команды.
+     * @param blockSize размер блока загрузчика.
+     */
+    private void ensureBlockBuffer(int blockSize) {
+        if (blockBuffer.length < blockSize + 8) {
+            blockBuffer = new byte[blockSize + 8]; // Address command, block command, size and memory type plus data.
+        }
+    }
+
+    private void setAddress(long address) throws Exception {
+        if (!sendAddress(address)) {
             throw new Exception("Setting address for programming operations failed! " + "Programmer did not return CR after 'A'-command.");
         }
     }
 
+    /**
+     * Установить адрес загрузчика, если он еще не стоит на этом адресе.
+     * @param address адрес в словах для Flash, в байтах для EEPROM.
+     * @return false - загрузчик не ответил CR.
+     * @throws Exception Ошибка блоков в конвейере записи.
+     */
+    private boolean sendAddress(long address) throws Exception {
+        drainFlashBlocks(0); // CR must not be mixed up with queued blocks.
+
+	    /* Already there after autoincrement? */
+        if (addressRegister.isAt(address)) {
+            addressRegister.skip();
+            return true;
+        }
+
+	    /* Set current address */
+        send(blockBuffer, 0, putAddress(0, address));
+
+	    /* Should return CR */
+        if (receive() != '\r') {
+            addressRegister.invalidate();
+            return false;
+        }
+        addressRegister.set(address);
+        return true;
+    }
+
+    /**
+     * Подготовить повтор команды после потерянного или искаженного ответа.
+     * @param attempt номер неудачной попытки, с 0.
+     * @param message ошибка, если повторы кончились.
+     * @return Сколько байт синхронизации загрузчик принял как данные прерванной команды.
+     * @throws Exception Повторы кончились или загрузчик не синхронизируется.
+     */
+    private int retry(int attempt, String message) throws Exception {
+        if (attempt >= retries) {
+            throw new Exception(message);
+        }
+        metrics.retry();
+        listener.onLog(message + " Retrying...");
+        return resynchronize();
+    }
+
+    /**
+     * Подготовить повтор кадра записи Flash.
+     * Прерванный кадр мог записать в страницу сдвинутые данные, биты которых повтор блока без стирания
+     * не восстановит. Блок повторяется, только если загрузчик стирает страницу перед записью блока и
+     * размер кадра не искажен, иначе Flash отмечается испорченной и запись прекращается.
+     * @param attempt номер неудачной попытки, с 0.
+     * @param message ошибка, если повторы кончились.
+     * @return true - блок можно послать снова; false - нужно стирание микросхемы.
+     * @throws Exception Повторы кончились или загрузчик не синхронизируется.
+     */
+    private boolean retryFlash(int attempt, String message) throws Exception {
+        int frame = frameLength; // Reset by synchronization.
+        int consumed = retry(attempt, message);
+        if (pageErase && consumed <= frame) {
+            return true;
+        }
+        flashDamaged = true; // Erase is needed.
+        return false;
+    }
+
+    /**
+     * Восстановить синхронизацию с загрузчиком.
+     * Незаконченная команда дополняется байтами 0xff, пока загрузчик не ответит '?' на лишний байт:
+     * сначала длиной самого длинного кадра с последней синхронизации, затем, если искажен размер кадра,
+     * все большими порциями до самого длинного возможного кадра.
+     * Старые ответы отбрасываются, затем загрузчик должен правильно ответить на команду 'a'.
+     * @return Сколько байт 0xff загрузчик принял как данные прерванной команды.
+     * @throws Exception Загрузчик не отвечает.
+     */
+    private int resynchronize() throws Exception {
+        pendingCount = 0; // Replies in window are discarded.
+        queuedReplies = 0;
+        addressRegister.invalidate();
+        int expected = getSession().isAutoincrement() ? 'Y' : 'N';
+        int chunk = Math.max(frameLength, 4); // Frame with intact size waits for that many bytes at most.
+        int padded = 0;
+        int answered = 0;
+
+        for (int attempt = 0; attempt <= retries; ) {
+            byte[] padding = new byte[chunk];
+            Arrays.fill(padding, PAD);
+            send(padding, 0, chunk);
+            padded += chunk;
+            boolean idle = false;
+            int b;
+            while ((b = getByte(DRAIN_MILLIS)) != -1) {
+                metrics.received(1); // Reply of broken command or of padding.
+                if (b == '?') {
+                    answered++;
+                    idle = true;
+                }
+            }
+            if (!idle && padded < MAX_FRAME) {
+                chunk = Math.min(Math.min(chunk * 2, MAX_PAD_CHUNK), MAX_FRAME - padded); // Frame still takes data.
+                continue;
+            }
+            send((byte) 'a');
+            if (receive() == expected) {
+                frameLength = 0;
+                return padded - answered;
+            }
+            attempt++;
+        }
+        throw new Exception("Lost synchronization with programmer! " + "Programmer did not answer 'a'-command.");
+    }
+
     /**
      * Получаем название bootloader микроконтролера
      *
      * @return Имя bootloader
      */
     public String readProgrammerID() {
-        /* Send 'S' command to programmer */
-        sendByte((byte) 'S');
-	    /* Read 7 characters */
-        char[] id = new char[7]; // Reserve 7 characters.
-        int length = id.length;
-        for (int i = 0; i < length; i++) {
-            id[i] = (char) getByte();
-        }
-        return String.valueOf(id);
+        return getSession().getProgrammerId();
     }
 
     /**
@@ -544,10 +1551,119 @@ public abstract class AVRProgrammer {
      * @throws Exception Подготовка не прошла есть ошибки.
      */
     public void doJob(InputStream isDevice, InputStream isHex) throws Exception {
+        long start = System.nanoTime();
+        AVRDevice device = new AVRDevice(isDevice /*dirDeviceFiles + '/' + deviceFileName, this*/, listener);
+        metrics.addPhase(BootloaderMetrics.Phase.PARSE, System.nanoTime() - start);
+        doJob(device, isHex /*dirBootFiles + '/' + bootFileName*/);
+    }
+
+    /**
+     * Подготавливаем фаилы для прошивки через кэш.
+     * Фаилы, уже разобранные раньше, берутся из кэша без разбора.
+     *
+     * @param cache    кэш прошивок и описаний.
+     * @param isDevice фаил микроконтроллера
+     * @param isHex    фаил прошивки
+     * @throws Exception Подготовка не прошла есть ошибки.
+     */
+    public void doJob(ImageCache cache, InputStream isDevice, InputStream isHex) throws Exception {
+        long start = System.nanoTime();
+        AVRDevice device = cache.getDevice(ImageCache.readAll(isDevice), listener, metrics);
+        metrics.addPhase(BootloaderMetrics.Phase.PARSE, System.nanoTime() - start);
+        doJob(cache, device, isHex);
+    }
+
+    /**
+     * Подготавливаем фаил прошивки для известного микроконтролера через кэш.
+     *
+     * @param cache  кэш прошивок и описаний.
+     * @param device микроконтроллер
+     * @param isHex  фаил прошивки
+     * @throws Exception Ошибка в фаиле прошивки.
+     */
+    public void doJob(ImageCache cache, AVRDevice device, InputStream isHex) throws Exception {
+        long start = System.nanoTime();
+        avrDevice = device;
+        image = null;
+        eepromFile = null;
+        hexFile = cache.getImage(ImageCache.readAll(isHex), avrDevice.getFlashSize(), HEXFile.pageSize(avrDevice), listener, metrics);
+        metrics.addPhase(BootloaderMetrics.Phase.PARSE, System.nanoTime() - start);
+    }
+
+    /**
+     * Подготавливаем фаил прошивки для микроконтролера из каталога.
+     * Микроконтроллер определяется по сигнатуре, XML не разбирается.
+     *
+     * @param catalog каталог микроконтроллеров.
+     * @param isHex   фаил прошивки
+     * @throws Exception Микроконтроллера нет в каталоге или ошибка в фаиле прошивки.
+     */
+    public void doJob(DeviceCatalog catalog, InputStream isHex) throws Exception {
+        Integer[] sig = new Integer[3];
+        readSignature(sig);
+        AVRDevice device = catalog.find(sig[0], sig[1], sig[2]);
+        if (device == null) {
+            throw new Exception("Device with signature " + Integer.toHexString(sig[0]) + ' ' + Integer.toHexString(sig[1]) + ' ' + Integer.toHexString(sig[2]) + " is not in catalog!");
+        }
+        doJob(device, isHex);
+    }
 
-        avrDevice = new AVRDevice(isDevice /*dirDeviceFiles + '/' + deviceFileName, this*/, handler);
-        hexFile = new HEXFile(avrDevice.getFlashSize(), (byte) 0xff, handler);
-        hexFile.readFile(isHex /*dirBootFiles + '/' + bootFileName*/);
+    /**
+     * Подготавливаем фаил прошивки для известного микроконтролера.
+     *
+     * @param device микроконтроллер
+     * @param isHex  фаил прошивки
+     * @throws Exception Ошибка в фаиле прошивки.
+     */
+    public void doJob(AVRDevice device, InputStream isHex) throws Exception {
+        long start = System.nanoTime();
+        avrDevice = device;
+        image = null;
+        eepromFile = null;
+        hexFile = new HEXFile(avrDevice.getFlashSize(), HEXFile.pageSize(avrDevice), (byte) 0xff, listener);
+        hexFile.readFile(isHex);
+        metrics.addPhase(BootloaderMetrics.Phase.PARSE, System.nanoTime() - start);
+    }
+
+    /**
+     * Подготавливаем уже разобранную прошивку для известного микроконтролера.
+     * Прошивка не меняется при программировании и может быть общей для нескольких программаторов.
+     *
+     * @param device микроконтроллер
+     * @param image  разобранная прошивка
+     */
+    void doJob(AVRDevice device, HEXFile _image) {
+        avrDevice = device;
+        hexFile = _image;
+        image = null;
+        eepromFile = null;
+    }
+
+    /**
+     * Загрузить данные EEPROM, например таблицы калибровки, из второго фаила HEX.
+     * Вызывается после doJob, который сбрасывает данные EEPROM.
+     * Данные записываются в {@link #doDeviceDependent()} после Flash, изменяются только отличающиеся байты.
+     *
+     * @param isEeprom фаил данных EEPROM, null - EEPROM не программировать.
+     * @throws Exception Микроконтроллер не задан, нет EEPROM или ошибка в фаиле.
+     */
+    public void loadEEPROM(InputStream isEeprom) throws Exception {
+        if (avrDevice == null) {
+            throw new Exception("Device must be set before loading EEPROM file!");
+        }
+        image = null;
+        if (isEeprom == null) {
+            eepromFile = null;
+            return;
+        }
+        if (avrDevice.getEEPROMSize() <= 0) {
+            throw new Exception("Device has no EEPROM!");
+        }
+        long start = System.nanoTime();
+        HEXFile data = new HEXFile(avrDevice.getEEPROMSize(), (byte) 0xff, listener);
+        data.readFile(isEeprom);
+        eepromFile = data;
+        metrics.addPhase(BootloaderMetrics.Phase.PARSE, System.nanoTime() - start);
     }
 
     /**
@@ -556,88 +1672,637 @@ public abstract class AVRProgrammer {
      * @throws Exception Программирование не выполнено, есть ошибки.
      */
     public void doDeviceDependent() throws Exception {
+        prepare();
+
+        /* Rewrite only changed pages? */
+        boolean updated = differential && update();
+        if (!updated) {
+            /* Continue interrupted programming without erase? */
+            if (!resume()) {
+                erase();
+            }
+            write();
+        }
+        verify();
+
+        /* Installed version for delta packages, pages outside image are unknown after update */
+        if (!updated && verified && checkManifest()) {
+            storeManifest(DeltaPackage.manifest(DeltaPackage.digest(image, (int) pagesize)), DeltaPackage.MANIFEST_SIZE);
+            listener.onLog("Firmware manifest written");
+        }
+
+        /* Calibration data and other EEPROM contents */
+        if (eepromFile != null) {
+            writeEEPROM();
+            verifyEEPROM();
+        }
+        exit();
+    }
+
+    /**
+     * Подготовить программирование: размер страницы, пределы адресов и используемый диапазон прошивки.
+     * Разобранная прошивка не меняется, используется вид с диапазоном этого программирования.
+     *
+     * @throws Exception Прошивка вне адресов микроконтроллера.
+     */
+    private void prepare() throws Exception {
 
 	    /* Set programmer pagesize */
+        if (hexFile == null) {
+            throw new Exception("HEX file is not loaded!");
+        }
+        verified = false;
+        journalKey = null; // Image may have changed.
+        eepromVerified = eepromFile == null;
         pagesize = avrDevice.getPageSize();
+        addressRegister.invalidate(); // Link may have been used outside programmer.
     /* Check if specified address limits are within device range */
-        if (flashEndAddress == -1) {
-            flashStartAddress = 0;
-            flashEndAddress = avrDevice.getFlashSize() - 1;
+        int startAddress = flashStartAddress; // Limits of this run, programmer settings are kept.
+        int endAddress = flashEndAddress;
+        if (endAddress == -1) {
+            startAddress = 0;
+            endAddress = avrDevice.getFlashSize() - 1;
         } else {
-            if (flashEndAddress >= avrDevice.getFlashSize()) {
+            if (endAddress >= avrDevice.getFlashSize()) {
                 throw new Exception("Specified Flash address range is outside device address space!");
             }
         }
 
-        if (eepromEndAddress == -1) {
+        int eepromEnd = eepromEndAddress;
+        if (eepromEnd == -1) {
             //int eepromStartAddress = 0;
-            eepromEndAddress = avrDevice.getEEPROMSize() - 1;
+            eepromEnd = avrDevice.getEEPROMSize() - 1;
         } else {
-            if (eepromEndAddress >= avrDevice.getEEPROMSize()) {
+            if (eepromEnd >= avrDevice.getEEPROMSize()) {
                 throw new Exception("Specified EEPROM address range is outside device address space!");
             }
         }
+        if (eepromFile != null && (eepromFile.getRangeStart() > eepromFile.getRangeEnd() || eepromFile.getRangeEnd() > eepromEnd)) {
+            throw new Exception("EEPROM HEX file defines data outside specified range!");
+        }
+        if (checkManifest() && eepromFile != null && eepromFile.getRangeStart() < manifestAddress + DeltaPackage.MANIFEST_SIZE && eepromFile.getRangeEnd() >= manifestAddress) {
+            throw new Exception("EEPROM HEX file defines data in firmware manifest area!");
+        }
 
 		    /* Check limits */
-        if (hexFile.getRangeStart() > flashEndAddress || hexFile.getRangeEnd() < flashStartAddress) {
+        if (hexFile.getRangeStart() > endAddress || hexFile.getRangeEnd() < startAddress) {
             throw new Exception("HEX file defines data outside specified range!");
         }
 
-        if (hexFile.getRangeStart() > flashStartAddress) {
-            flashStartAddress = hexFile.getRangeStart();
+        if (hexFile.getRangeStart() > startAddress) {
+            startAddress = hexFile.getRangeStart();
+        }
+        if (hexFile.getRangeEnd() < endAddress) {
+            endAddress = hexFile.getRangeEnd();
+        }
+        image = hexFile.withUsedRange(startAddress, 15 - endAddress % 16 + endAddress); // Parsed file may be shared.
+        imageStart = startAddress;
+        imageEnd = endAddress;
+    }
+
+    private HEXFile getPreparedImage() throws Exception {
+        if (image == null) {
+            prepare();
+        }
+        return image;
+    }
+
+    /**
+     * Опросить загрузчик, если еще не опрошен.
+     *
+     * @return Возможности загрузчика.
+     */
+    public BootloaderSession identify() {
+        return getSession();
+    }
+
+    /**
+     * Стереть микросхему.
+     *
+     * @throws Exception Стирание не поддерживается или загрузчик не ответил.
+     */
+    public void erase() throws Exception {
+        getPreparedImage();
+        invalidateManifest();
+
+            /* Erase chip before programming anything? */
+        listener.onLog("Erasing chip contents...");
+        progress.start("Erasing chip...", imageStart, imageEnd);
+        long start = System.nanoTime();
+        try {
+            if (!chipErase()) {
+                throw new Exception("Chip erase is not supported by this programmer!");
+            }
+            if (beginJournal()) {
+                journal.reset(); // Written pages are erased.
+            }
+            metrics.addPhase(BootloaderMetrics.Phase.ERASE, System.nanoTime() - start);
+            progress.end();
+        } finally {
+            progress.close();
+        }
+    }
+
+    /**
+     * Записать прошивку во Flash, микросхема должна быть стерта.
+     * Прерванный блок мог записать в страницу лишние биты, тогда микросхема стирается
+     * и прошивка пишется заново, не больше {@link #setRetries(int)} раз.
+     *
+     * @throws Exception Ошибка записи или программирование отменено.
+     */
+    public void write() throws Exception {
+        for (int attempt = 0; !writeImage(); attempt++) {
+            if (attempt >= retries) {
+                throw new Exception("Programming Flash failed! " + "Broken blocks after " + attempt + " chip erases.");
+            }
+            listener.onLog("Broken block can not be rewritten in place, erasing chip...");
+            erase();
+        }
+    }
+
+    /**
+     * Записать прошивку во Flash один раз.
+     *
+     * @return false - прерванный блок испортил страницу, нужно стирание.
+     * @throws Exception Ошибка записи или программирование отменено.
+     */
+    private boolean writeImage() throws Exception {
+        HEXFile data = getPreparedImage();
+        beginJournal();
+        flashDamaged = false;
+
+		    /* Program data */
+        listener.onLog("Programming Flash contents...");
+        progress.start("Programming Flash...", imageStart, imageEnd);
+        long start = System.nanoTime();
+        try {
+            if (!writeFlash(data)) {
+                throw new Exception("Flash programming is not supported by this programmer!");
+            }
+            metrics.addPhase(BootloaderMetrics.Phase.WRITE, System.nanoTime() - start);
+            if (flashDamaged) {
+                if (journalKey != null) {
+                    journal.reset(); // Confirmed pages are not known to be intact.
+                }
+                return false;
+            }
+            progress.end();
+        } finally {
+            progress.close();
+            saveJournal(); // Keep confirmed pages if link is lost.
+        }
+        return true;
+    }
+
+    /**
+     * Включить продолжение прерванного программирования.
+     * Подтвержденные загрузчиком блоки отмечаются в журнале. Если запись прервалась,
+     * после переподключения {@link #doDeviceDependent()} не стирает микросхему
+     * и пишет только неотмеченные страницы, затем проверяет всю Flash.
+     * Работает в блочном режиме загрузчика.
+     *
+     * @param _journal журнал устройства, null - программировать всегда заново.
+     */
+    public void setJournal(ProgramJournal _journal) {
+        journal = _journal;
+        journalKey = null;
+    }
+
+    /**
+     * Можно ли продолжить прерванное программирование этой прошивки без стирания.
+     *
+     * @return true - в журнале есть записанные страницы этой прошивки, стирать не нужно.
+     * @throws Exception Ошибка подготовки прошивки.
+     */
+    public boolean resume() throws Exception {
+        if (!beginJournal() || journal.getConfirmedPages() == 0) {
+            return false;
+        }
+        listener.onLog("Resuming programming, " + journal.getConfirmedPages() + " pages already written");
+        return true;
+    }
+
+    private boolean beginJournal() throws Exception {
+        if (journal == null || !getSession().isBlockMode()) {
+            return false; // Pages are confirmed by block writes only.
+        }
+        if (journalKey == null) {
+            BootloaderSession s = getSession();
+            journalKey = ProgramJournal.key(getPreparedImage(), s.getSignature0(), s.getSignature1(), s.getSignature2());
+            journal.begin(journalKey, (int) pagesize, (int) ((avrDevice.getFlashSize() + pagesize - 1) / pagesize));
+        }
+        return true;
+    }
+
+    private void saveJournal() {
+        if (journalKey == null) {
+            return;
+        }
+        try {
+            journal.save();
+        } catch (IOException e) {
+            listener.onLog("Journal is not saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Переписать только отличающиеся страницы, без стирания микросхемы.
+     *
+     * @return false - загрузчик не поддерживает блочный режим, блок меньше страницы или прерванный блок
+     *         испортил другие страницы, нужно стирание и запись.
+     * @throws Exception Ошибка записи или программирование отменено.
+     */
+    private boolean update() throws Exception {
+        HEXFile data = getPreparedImage();
+        invalidateManifest();
+        listener.onLog("Updating changed Flash pages...");
+        progress.start("Updating Flash...", imageStart, imageEnd);
+        long start = System.nanoTime();
+        boolean updated;
+        flashDamaged = false;
+        pageErase = true; // Each block erases its page.
+        try {
+            updated = writeFlashDifferential(data);
+            metrics.addPhase(BootloaderMetrics.Phase.WRITE, System.nanoTime() - start);
+            if (updated && !flashDamaged) {
+                progress.end();
+            }
+        } finally {
+            pageErase = false;
+            progress.close();
+        }
+        if (!updated) {
+            listener.onLog("Block mode with blocks of whole pages is not supported, programming whole chip...");
+        } else if (flashDamaged) {
+            listener.onLog("Broken block can not be rewritten in place, programming whole chip...");
+            return false;
+        }
+        return updated;
+    }
+
+    /**
+     * Сравнить Flash с прошивкой по мере чтения.
+     *
+     * @return true - Flash совпадает с прошивкой.
+     * @throws Exception Ошибка чтения или программирование отменено.
+     */
+    public boolean verify() throws Exception {
+        HEXFile data = getPreparedImage();
+
+		/* Compare to Flash while reading */
+        FlashVerifier verifier = new FlashVerifier(data, verifyAll);
+        listener.onLog("Verifying Flash contents...");
+        progress.start("Verifying Flash...", imageStart, imageEnd);
+        long start = System.nanoTime();
+        try {
+            if (!readFlash(verifier)) {
+                throw new Exception("Flash readout is not supported by this programmer!");
+            }
+            verifier.finish();
+            metrics.addPhase(BootloaderMetrics.Phase.READBACK, System.nanoTime() - start - verifier.getCompareNanos());
+            metrics.addPhase(BootloaderMetrics.Phase.COMPARE, verifier.getCompareNanos());
+            progress.end();
+        } finally {
+            progress.close();
+        }
+
+        verified = verifier.getMismatches().isEmpty();
+        if (journalKey != null) {
+            journal.reset(); // Next run starts again, after mismatch with erase.
         }
-        if (hexFile.getRangeEnd() < flashEndAddress) {
-            flashEndAddress = hexFile.getRangeEnd();
+        if (verified) {// All equal?
+
+            listener.onLog("Equal!");
+        } else {
+            for (FlashVerifier.Range range : verifier.getMismatches()) {
+                listener.onLog("Unequal at address " + range + '!');
+            }
         }
-        hexFile.setUsedRange(flashStartAddress, 15 - flashEndAddress % 16 + flashEndAddress);
-        /* Erase chip before programming anything? */
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Erasing chip contents...").sendToTarget();
-        if (!chipErase()) {
-            throw new Exception("Chip erase is not supported by this programmer!");
+        return verified;
+    }
+
+    /**
+     * Записать данные EEPROM. Содержимое EEPROM читается блоками,
+     * записываются только отличающиеся байты, запись каждого байта EEPROM медленная.
+     *
+     * @throws Exception Данные EEPROM не загружены, ошибка записи или программирование отменено.
+     */
+    public void writeEEPROM() throws Exception {
+        getPreparedImage();
+        HEXFile data = getEEPROMFile();
+
+        listener.onLog("Programming EEPROM contents...");
+        progress.start("Programming EEPROM...", data.getRangeStart(), data.getRangeEnd());
+        long start = System.nanoTime();
+        try {
+            int changed;
+            if (getSession().isBlockMode()) {
+                changed = writeEEPROMBlock(data);
+            } else {
+                changed = writeEEPROMBytes(data);
+            }
+            metrics.addPhase(BootloaderMetrics.Phase.EEPROM_WRITE, System.nanoTime() - start);
+            progress.end();
+            listener.onLog("Changed " + changed + " of " + (data.getRangeEnd() - data.getRangeStart() + 1) + " EEPROM bytes");
+        } finally {
+            progress.close();
         }
+    }
 
-		/* Program data */
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Programming Flash contents...").sendToTarget();
-        handler.obtainMessage(HandlerBootloader.Result.MSG_SHOW_DIALOG.ordinal(), flashEndAddress, 0, "Programming Flash...").sendToTarget();
-        if (!writeFlash(hexFile)) {
-            handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
-            throw new Exception("Flash programming is not supported by this programmer!");
+    /**
+     * Сравнить EEPROM с данными по мере чтения.
+     *
+     * @return true - EEPROM совпадает с данными.
+     * @throws Exception Данные EEPROM не загружены, ошибка чтения или программирование отменено.
+     */
+    public boolean verifyEEPROM() throws Exception {
+        getPreparedImage();
+        HEXFile data = getEEPROMFile();
+
+        FlashVerifier verifier = new FlashVerifier(data, verifyAll);
+        listener.onLog("Verifying EEPROM contents...");
+        progress.start("Verifying EEPROM...", data.getRangeStart(), data.getRangeEnd());
+        long start = System.nanoTime();
+        try {
+            if (getSession().isBlockMode()) {
+                readEEPROMBlock(verifier);
+            } else {
+                readEEPROMBytes(verifier);
+            }
+            verifier.finish();
+            metrics.addPhase(BootloaderMetrics.Phase.EEPROM_VERIFY, System.nanoTime() - start);
+            progress.end();
+        } finally {
+            progress.close();
         }
-        handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
 
-		/* Prepare HEX file for comparision */
-        HEXFile hexFileVerifying = new HEXFile(avrDevice.getFlashSize(), (byte) 0xff, /*getApplicationContext(),*/ handler); // Used for verifying memory contents.
+        eepromVerified = verifier.getMismatches().isEmpty();
+        if (eepromVerified) {
+            listener.onLog("EEPROM equal!");
+        } else {
+            for (FlashVerifier.Range range : verifier.getMismatches()) {
+                listener.onLog("EEPROM unequal at address " + range + '!');
+            }
+        }
+        return eepromVerified;
+    }
 
-		/* Compare to Flash */
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Reading Flash contents...").sendToTarget();
-        handler.obtainMessage(HandlerBootloader.Result.MSG_SHOW_DIALOG.ordinal(), flashEndAddress, 0, "Reading Flash...").sendToTarget();
-        hexFileVerifying.setUsedRange(hexFile.getRangeStart(), hexFile.getRangeEnd());
-        if (!readFlash(hexFileVerifying)) {
-            handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
-            throw new Exception("Flash readout is not supported by this programmer!");
+    private HEXFile getEEPROMFile() throws Exception {
+        if (eepromFile == null) {
+            throw new Exception("EEPROM file is not loaded!");
+        }
+        return eepromFile;
+    }
+
+    /**
+     * Обновить прошивку пакетом изменений, без стирания микросхемы и чтения всей Flash.
+     * Установленная версия подтверждается манифестом в EEPROM, см. {@link #setManifestAddress(int)},
+     * пишутся и проверяются только измененные страницы, затем в манифест записывается новая версия
+     * и загрузчик завершается. Как для дифференциального программирования, нужен блочный режим с блоком
+     * не меньше страницы и загрузчик должен стирать страницу перед записью блока.
+     * Если после записи страницы не совпадают, они переписываются еще раз, затем манифест остается стертым.
+     *
+     * @param device микроконтроллер
+     * @param delta  пакет изменений
+     * @return true - пакет записан и проверен; false - установлена не базовая версия пакета, нет блочного режима
+     *         целыми страницами или страницы не совпали после записи, загрузчик не завершен
+     *         и нужно программирование всей прошивки.
+     * @throws Exception Манифест не хранится, пакет для другого микроконтроллера, ошибка записи или программирование отменено.
+     */
+    public boolean doDelta(AVRDevice device, DeltaPackage delta) throws Exception {
+        if (device.getFlashSize() != delta.getFlashSize() || device.getPageSize() != delta.getPageSize()) {
+            throw new Exception("Delta package is made for another device!");
+        }
+        avrDevice = device;
+        hexFile = null; // Whole firmware must be loaded again for doDeviceDependent.
+        image = null;
+        eepromFile = null;
+        verified = false;
+        journalKey = null;
+        pagesize = avrDevice.getPageSize();
+        addressRegister.invalidate(); // Link may have been used outside programmer.
+        if (!checkManifest()) {
+            throw new Exception("Manifest address is not set!");
+        }
+
+	    /* Pages are written and read as one block each */
+        if (!isBlockPerPage()) {
+            listener.onLog("Block mode with blocks of whole pages is not supported, programming whole chip...");
+            return false;
+        }
+
+	    /* Confirm installed version with one short read */
+        if (!Arrays.equals(readManifest(), DeltaPackage.manifest(delta.getBaseDigest()))) {
+            listener.onLog("Installed firmware is not the base of delta package");
+            return false;
+        }
+
+        if (delta.getChangedPages() == 0) {
+            verified = true; // Same firmware.
+        } else {
+            invalidateManifest();
+            flashDamaged = false;
+            pageErase = true; // Each block erases its page.
+            try {
+                writeDelta(delta);
+                verified = !flashDamaged && verifyDelta(delta);
+                if (!verified && !flashDamaged) {
+                    listener.onLog("Rewriting changed pages...");
+                    writeDelta(delta); // Each block erases its page, no half written page is left.
+                    verified = !flashDamaged && verifyDelta(delta);
+                }
+            } finally {
+                pageErase = false;
+            }
+        }
+        if (!verified) {
+            listener.onLog("Changed pages are not written, programming whole chip...");
+            return false;
+        }
+        storeManifest(DeltaPackage.manifest(delta.getTargetDigest()), DeltaPackage.MANIFEST_SIZE);
+        exit();
+        return true;
+    }
+
+    /**
+     * Записать измененные страницы пакета.
+     * @param delta пакет изменений.
+     * @throws Exception Ошибка записи или программирование отменено.
+     */
+    private void writeDelta(DeltaPackage delta) throws Exception {
+        HEXFile data = delta.getPages();
+        int pageSize = delta.getPageSize();
+        ensureBlockBuffer(getSession().getBlockSize());
+
+        listener.onLog("Writing " + delta.getChangedPages() + " changed pages...");
+        progress.start("Updating Flash...", 0, delta.getChangedPages());
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < delta.getChangedPages() && !flashDamaged; i++) {
+                int address = delta.getChangedAddress(i);
+                checkCancelled();
+                sendFlashBlock(data, address, pageSize, address + pageSize - 1);
+                progress.step(i + 1);
+            }
+            drainFlashBlocks(0); // Wait for outstanding blocks.
+            metrics.addPhase(BootloaderMetrics.Phase.WRITE, System.nanoTime() - start);
+            progress.end();
+        } finally {
+            progress.close();
         }
-        handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
+    }
 
-		/* Compare data */
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Comparing Flash data...").sendToTarget();
-        handler.obtainMessage(HandlerBootloader.Result.MSG_SHOW_DIALOG.ordinal(), flashEndAddress, 0, "Comparing Flash data...").sendToTarget();
-        int pos; // Used when comparing data.
-        for (pos = hexFile.getRangeStart(); pos <= hexFile.getRangeEnd(); pos++) {
-            handler.obtainMessage(HandlerBootloader.Result.MSG_UPDATE_DIALOG.ordinal(), pos, 0).sendToTarget();
-            if (hexFile.getData(pos) != hexFileVerifying.getData(pos)) {
-                handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Unequal at address 0x" + hexFile.getData(pos) + '!').sendToTarget();
-                handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
-                break;
+    /**
+     * Сравнить измененные страницы пакета с Flash, остальные страницы подтверждены манифестом.
+     * @param delta пакет изменений.
+     * @return true - страницы совпадают.
+     * @throws Exception Ошибка чтения или программирование отменено.
+     */
+    private boolean verifyDelta(DeltaPackage delta) throws Exception {
+        int pageSize = delta.getPageSize();
+        ensureBlockBuffer(getSession().getBlockSize());
+
+        FlashVerifier verifier = new FlashVerifier(delta.getPages(), verifyAll);
+        listener.onLog("Verifying changed pages...");
+        progress.start("Verifying Flash...", 0, delta.getChangedPages());
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < delta.getChangedPages() && !verifier.isDone(); i++) {
+                int address = delta.getChangedAddress(i);
+                checkCancelled();
+                receiveFlashBlock(verifier, address, pageSize, address + pageSize - 1);
+                progress.step(i + 1);
             }
+            metrics.addPhase(BootloaderMetrics.Phase.READBACK, System.nanoTime() - start - verifier.getCompareNanos());
+            metrics.addPhase(BootloaderMetrics.Phase.COMPARE, verifier.getCompareNanos());
+            progress.end();
+        } finally {
+            progress.close();
+        }
+
+        if (verifier.getMismatches().isEmpty()) {
+            listener.onLog("Equal!");
+            return true;
+        }
+        for (FlashVerifier.Range range : verifier.getMismatches()) {
+            listener.onLog("Unequal at address " + range + '!');
+        }
+        return false;
+    }
+
+    /**
+     * Хранится ли манифест прошивки.
+     * @return true - адрес манифеста задан.
+     * @throws Exception Манифест вне EEPROM или размер страницы неизвестен.
+     */
+    private boolean checkManifest() throws Exception {
+        if (manifestAddress == -1) {
+            return false;
+        }
+        if (manifestAddress + DeltaPackage.MANIFEST_SIZE > avrDevice.getEEPROMSize()) {
+            throw new Exception("Firmware manifest is outside device EEPROM!");
         }
-        handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
+        if (pagesize <= 0) {
+            throw new Exception("Device page size is not known, firmware manifest cannot be kept!");
+        }
+        return true;
+    }
 
-        if (pos > hexFile.getRangeEnd()) {// All equal?
+    /**
+     * Прочитать манифест прошивки из EEPROM в блочном режиме.
+     * @return Байты манифеста.
+     * @throws Exception Ошибка чтения.
+     */
+    private byte[] readManifest() throws Exception {
+        int blockSize = getSession().getBlockSize(); // Bootloader block size.
+        ensureBlockBuffer(blockSize);
+        byte[] manifest = new byte[DeltaPackage.MANIFEST_SIZE];
+        long start = System.nanoTime();
+        for (int offset = 0; offset < manifest.length; offset += blockSize) {
+            int byteCount = Math.min(blockSize, manifest.length - offset);
+            readEEPROM(manifestAddress + offset, byteCount);
+            System.arraycopy(blockBuffer, 0, manifest, offset, byteCount);
+        }
+        metrics.addPhase(BootloaderMetrics.Phase.EEPROM_VERIFY, System.nanoTime() - start);
+        return manifest;
+    }
 
-            handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Equal!").sendToTarget();
+    /**
+     * Записать начало манифеста прошивки в EEPROM, совпадающие байты не переписываются.
+     * @param manifest байты манифеста.
+     * @param length   сколько байт записать.
+     * @throws Exception Ошибка записи.
+     */
+    private void storeManifest(byte[] manifest, int length) throws Exception {
+        HEXFile data = new HEXFile(avrDevice.getEEPROMSize(), (byte) 0xff, listener);
+        for (int i = 0; i < length; i++) {
+            data.setData(manifestAddress + i, manifest[i]);
         }
-        sendByte((byte) 'E');   //Exit bootloader
-        handler.obtainMessage(HandlerBootloader.Result.MSG_LOG.ordinal(), "Exit bootloader").sendToTarget();
+        data.setUsedRange(manifestAddress, manifestAddress + length - 1);
+        long start = System.nanoTime();
+        if (getSession().isBlockMode()) {
+            writeEEPROMBlock(data);
+        } else {
+            writeEEPROMBytes(data);
+        }
+        metrics.addPhase(BootloaderMetrics.Phase.EEPROM_WRITE, System.nanoTime() - start);
+    }
+
+    /**
+     * Стереть манифест перед изменением Flash, прерванная запись не примется за установленную версию.
+     * @throws Exception Ошибка записи.
+     */
+    private void invalidateManifest() throws Exception {
+        if (checkManifest()) {
+            storeManifest(new byte[1], 1); // Magic cleared, installed version unknown.
+        }
+    }
+
+    /**
+     * Выйти из загрузчика и запустить программу.
+     */
+    public void exit() {
+        long start = System.nanoTime();
+        send((byte) 'E');   //Exit bootloader
+        metrics.addPhase(BootloaderMetrics.Phase.EXIT, System.nanoTime() - start);
+        resetSession(); // Application runs now, probe again on next connection.
+        listener.onLog("Exit bootloader");
+    }
+
+    /**
+     * Отменить текущий шаг программирования из другого потока.
+     * Шаг останавливается между блоками или страницами, ждет ответы на уже посланные команды
+     * и бросает {@link CancellationException}. Загрузчик остается в режиме команд без незаконченных команд,
+     * можно повторить программирование или выйти через {@link #exit()}.
+     * Если шаг не выполняется, отменяется следующий.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Снять отмену, которую еще не получил ни один шаг.
+     */
+    void clearCancel() {
+        cancelled = false;
+    }
+
+    private void checkCancelled() throws Exception {
+        if (cancelled) {
+            cancelled = false;
+            drainFlashBlocks(0); // Bootloader finishes commands in flight.
+            listener.onLog("Programming cancelled");
+            throw new CancellationException("Programming cancelled!");
+        }
+    }
+
+    /**
+     * Совпали ли Flash и EEPROM, если программировалась, с фаилами при последнем программировании.
+     * Несовпадение не вызывает исключения, адреса выводятся в лог.
+     * @return true - проверка прошла без несовпадений.
+     */
+    public boolean isVerified() {
+        return verified && eepromVerified;
     }
 
     /**
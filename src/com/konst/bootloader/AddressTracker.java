@@ -0,0 +1,61 @@
+package com.konst.bootloader;
+
+/**
+ * Копия регистра адреса загрузчика.
+ * Позволяет не посылать команду 'A' или 'H', если загрузчик уже стоит на нужном адресе
+ * после автоинкремента предыдущих команд.
+ */
+class AddressTracker {
+    private static final long UNKNOWN = -1;
+    private long address = UNKNOWN;                                         // Word address in bootloader, -1 if unknown.
+    private int skipped;                                                    // Address commands not sent.
+
+    /**
+     * Стоит ли загрузчик на адресе.
+     * @param _address адрес в словах.
+     * @return true - команду адреса можно не посылать.
+     */
+    boolean isAt(long _address) {
+        return address != UNKNOWN && address == _address;
+    }
+
+    /**
+     * Загрузчик получил команду адреса.
+     * @param _address адрес в словах.
+     */
+    void set(long _address) {
+        address = _address;
+    }
+
+    /**
+     * Загрузчик увеличил адрес после команды.
+     * @param words на сколько слов.
+     */
+    void advance(long words) {
+        if (address != UNKNOWN) {
+            address += words;
+        }
+    }
+
+    /**
+     * Адрес в загрузчике неизвестен, следующая команда адреса будет послана.
+     */
+    void invalidate() {
+        address = UNKNOWN;
+    }
+
+    /**
+     * Отметить пропущенную команду адреса.
+     */
+    void skip() {
+        skipped++;
+    }
+
+    /**
+     * Количество пропущенных команд адреса.
+     * @return Сколько команд не послано.
+     */
+    int getSkipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,275 @@
+package com.konst.bootloader;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Асинхронная работа с программатором.
+ * Шаги выполняются в общем пуле потоков, шаги одного программатора - по очереди в порядке запуска,
+ * поэтому много программаторов обслуживает небольшой пул без отдельного потока на устройство.
+ * Результат шага приходит в {@link Future} и, если задан, в {@link Callback} в потоке пула.
+ * {@link Future#cancel(boolean)} снимает шаг из очереди или останавливает выполняемый шаг между блоками,
+ * см. {@link AVRProgrammer#cancel()}, и ждет остановки: шаг, успевший закончиться, не отменяется.
+ */
+public class AsyncProgrammer {
+    private final AVRProgrammer programmer;
+    private final Executor executor;
+    private final Queue<Runnable> steps = new ArrayDeque<>();               // Steps waiting for previous one.
+    private Runnable active;                                                // Step given to executor.
+
+    /**
+     * Результат шага.
+     * @param <T> тип результата.
+     */
+    public interface Callback<T> {
+        /**
+         * Шаг выполнен.
+         * @param result результат шага.
+         */
+        void onSuccess(T result);
+
+        /**
+         * Шаг не выполнен или отменен, тогда ошибка {@link CancellationException}.
+         * @param error ошибка шага.
+         */
+        void onFailure(Exception error);
+    }
+
+    /**
+     * @param _programmer программатор устройства, не используется напрямую пока выполняются шаги.
+     * @param _executor   пул потоков, может быть общим для многих программаторов.
+     */
+    public AsyncProgrammer(AVRProgrammer _programmer, Executor _executor) {
+        programmer = _programmer;
+        executor = _executor;
+    }
+
+    public AVRProgrammer getProgrammer() {
+        return programmer;
+    }
+
+    /**
+     * Опросить загрузчик.
+     * @param callback результат шага, может быть null.
+     * @return Возможности загрузчика.
+     */
+    public Future<BootloaderSession> identify(Callback<BootloaderSession> callback) {
+        return submit(new Callable<BootloaderSession>() {
+            @Override
+            public BootloaderSession call() {
+                return programmer.identify();
+            }
+        }, callback);
+    }
+
+    /**
+     * Стереть микросхему.
+     * @param callback результат шага, может быть null.
+     * @return Окончание шага.
+     */
+    public Future<Void> erase(Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                programmer.erase();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Записать прошивку во Flash.
+     * @param callback результат шага, может быть null.
+     * @return Окончание шага.
+     */
+    public Future<Void> program(Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                programmer.write();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Сравнить Flash с прошивкой.
+     * @param callback результат шага, может быть null.
+     * @return true - Flash совпадает с прошивкой.
+     */
+    public Future<Boolean> verify(Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return programmer.verify();
+            }
+        }, callback);
+    }
+
+    /**
+     * Выйти из загрузчика.
+     * @param callback результат шага, может быть null.
+     * @return Окончание шага.
+     */
+    public Future<Void> exit(Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                programmer.exit();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Выполнить все программирование как {@link AVRProgrammer#doDeviceDependent()}.
+     * @param callback результат шага, может быть null.
+     * @return true - Flash совпадает с прошивкой.
+     */
+    public Future<Boolean> run(Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                programmer.doDeviceDependent();
+                return programmer.isVerified();
+            }
+        }, callback);
+    }
+
+    private <T> Future<T> submit(Callable<T> step, Callback<T> callback) {
+        Step<T> task = new Step<>(step, callback);
+        synchronized (steps) {
+            steps.add(task);
+            if (active == null) {
+                scheduleNext();
+            }
+        }
+        return task;
+    }
+
+    /* Give next step to executor when previous one has finished */
+    private void scheduleNext() {
+        synchronized (steps) {
+            final Runnable next = steps.poll();
+            active = next;
+            if (next != null) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            next.run();
+                        } finally {
+                            scheduleNext();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Шаг программирования. Шаг в очереди отменяется сразу, выполняемому шагу передается отмена программатора,
+     * и шаг считается отмененным только когда программатор остановился между блоками.
+     */
+    private class Step<T> extends FutureTask<T> {
+        private final Callback<T> callback;
+        private Thread runner;                                              // Thread of running step, null if not started.
+        private boolean stopping;                                           // Running step was asked to stop.
+
+        Step(Callable<T> step, Callback<T> _callback) {
+            super(step);
+            callback = _callback;
+        }
+
+        /**
+         * Отменить шаг. Выполняемый шаг останавливается между блоками, вызов ждет его окончания.
+         * Из слушателя программатора, то есть в потоке самого шага, остановка только запрашивается.
+         * @param mayInterruptIfRunning не используется, поток не прерывается, а останавливается между блоками.
+         * @return true - шаг отменен; false - шаг закончился раньше остановки.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (runner == null) {
+                    return super.cancel(false); // Never touched the link, other steps go on.
+                }
+                if (isDone()) {
+                    return false;
+                }
+                stopping = true;
+            }
+            programmer.cancel(); // Reported in setException when step has stopped.
+            if (runner == Thread.currentThread()) {
+                return false; // Can not wait for itself, step stops after listener returns.
+            }
+
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        get();
+                        return false; // Finished before it checked cancellation.
+                    } catch (CancellationException e) {
+                        return true;
+                    } catch (ExecutionException e) {
+                        return false;
+                    } catch (InterruptedException e) {
+                        interrupted = true; // Wait on, result must be known.
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isCancelled()) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            programmer.clearCancel(); // Left by a step cancelled before it ran.
+            super.run();
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            boolean cancelled;
+            synchronized (this) {
+                cancelled = stopping && t instanceof CancellationException;
+            }
+            if (cancelled) {
+                super.cancel(false); // Step has stopped, now it is cancelled.
+            } else {
+                super.setException(t);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null) {
+                return;
+            }
+            try {
+                callback.onSuccess(get());
+            } catch (CancellationException e) {
+                callback.onFailure(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                callback.onFailure(cause instanceof Exception ? (Exception) cause : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.konst.bootloader;
+
+/**
+ * Слушатель без действий. Наследники переопределяют только нужные события.
+ */
+public class BootloaderAdapter implements BootloaderListener {
+
+    @Override
+    public void onLog(String message) {
+    }
+
+    @Override
+    public void onShowDialog(int max, String title) {
+    }
+
+    @Override
+    public void onUpdateDialog(int progress) {
+    }
+
+    @Override
+    public void onCloseDialog() {
+    }
+}
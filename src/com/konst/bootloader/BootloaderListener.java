@@ -0,0 +1,33 @@
+package com.konst.bootloader;
+
+/**
+ * Слушатель событий программатора: лог, прогресс диалог.
+ * Не зависит от Android, на Android события передает {@link HandlerBootloader}.
+ * Методы вызываются в потоке программирования.
+ */
+public interface BootloaderListener {
+
+    /**
+     * Сообщение для логов.
+     * @param message текст сообщения.
+     */
+    void onLog(String message);
+
+    /**
+     * Открытие прогресс диалога.
+     * @param max   конечное значение прогресса.
+     * @param title заголовок диалога.
+     */
+    void onShowDialog(int max, String title);
+
+    /**
+     * Обновление прогресс диалога.
+     * @param progress текущее значение прогресса.
+     */
+    void onUpdateDialog(int progress);
+
+    /**
+     * Закрытие прогресс диалога.
+     */
+    void onCloseDialog();
+}
@@ -0,0 +1,177 @@
+package com.konst.bootloader;
+
+/**
+ * Снимок замеров программатора: время этапов, байты канала, команды по кодам
+ * и гистограмма задержки ответа загрузчика.
+ * Снимок не меняется, новый берется через {@link AVRProgrammer#getMetrics()} в любой момент работы.
+ */
+public class BootloaderMetrics {
+
+    /**
+     * Этапы работы программатора.
+     */
+    public enum Phase {
+        /** Разбор прошивки и описания микроконтроллера или загрузка из кэша. */
+        PARSE,
+        /** Опрос возможностей загрузчика. */
+        IDENTIFY,
+        /** Стирание микросхемы. */
+        ERASE,
+        /** Запись Flash, в дифференциальном режиме вместе с чтением страниц. */
+        WRITE,
+        /** Чтение Flash для проверки, без времени сравнения. */
+        READBACK,
+        /** Сравнение прочитанных данных с прошивкой. */
+        COMPARE,
+        /** Чтение и запись отличающихся байт EEPROM. */
+        EEPROM_WRITE,
+        /** Чтение и сравнение EEPROM. */
+        EEPROM_VERIFY,
+        /** Выход из загрузчика. */
+        EXIT
+    }
+
+    /** Количество корзин гистограммы задержки. */
+    public static final int LATENCY_BUCKETS = 24;
+
+    private final long[] phaseNanos;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final int[] commandCounts;                                      // By command code.
+    private final long[] latencyHistogram;
+    private final long latencyCount;
+    private final long latencyTotalNanos;
+    private final long latencyMaxNanos;
+    private final int cacheHits;
+    private final int cacheMisses;
+    private final int retries;
+    private final int timeouts;
+
+    /* Constructor */
+    BootloaderMetrics(long[] phaseNanos, long bytesSent, long bytesReceived, int[] commandCounts,
+                      long[] latencyHistogram, long latencyCount, long latencyTotalNanos, long latencyMaxNanos,
+                      int cacheHits, int cacheMisses, int retries, int timeouts) {
+        this.phaseNanos = phaseNanos;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.commandCounts = commandCounts;
+        this.latencyHistogram = latencyHistogram;
+        this.latencyCount = latencyCount;
+        this.latencyTotalNanos = latencyTotalNanos;
+        this.latencyMaxNanos = latencyMaxNanos;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.retries = retries;
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Время этапа, сумма за все выполнения этапа.
+     * @param phase этап.
+     * @return Наносекунды.
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Сколько команд послано загрузчику.
+     * @param code код команды, например 'B' или 'A'.
+     * @return Количество команд.
+     */
+    public int getCommandCount(char code) {
+        return commandCounts[code & 0xff];
+    }
+
+    /**
+     * Гистограмма задержки ответа: от конца посылки команды до приема первого ответа.
+     * Корзина i считает задержки меньше {@link #getLatencyBucketLimitMicros(int)} и не меньше предыдущей границы,
+     * последняя корзина считает все большие задержки.
+     * @return Количество ответов по корзинам.
+     */
+    public long[] getLatencyHistogram() {
+        return latencyHistogram.clone();
+    }
+
+    /**
+     * Верхняя граница корзины гистограммы.
+     * @param bucket номер корзины.
+     * @return Микросекунды, 2 в степени номера корзины.
+     */
+    public static long getLatencyBucketLimitMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    public long getLatencyCount() {
+        return latencyCount;
+    }
+
+    public long getLatencyMeanNanos() {
+        return latencyCount == 0 ? 0 : latencyTotalNanos / latencyCount;
+    }
+
+    public long getLatencyMaxNanos() {
+        return latencyMaxNanos;
+    }
+
+    /**
+     * Сколько раз прошивка или описание взяты из {@link ImageCache} без разбора.
+     * @return Количество попаданий.
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Сколько раз прошивку или описание пришлось разобрать при работе через {@link ImageCache}.
+     * @return Количество промахов.
+     */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Сколько раз блок повторен после истечения времени ответа или без CR в ответе.
+     * @return Количество повторов.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Сколько раз ответ загрузчика не пришел за время ожидания.
+     * @return Количество таймаутов.
+     */
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            text.append(phase.name().toLowerCase()).append('=').append(phaseNanos[phase.ordinal()] / 1000000).append("ms ");
+        }
+        text.append("sent=").append(bytesSent).append(" received=").append(bytesReceived);
+        text.append(" commands={");
+        boolean first = true;
+        for (int code = 0; code < commandCounts.length; code++) {
+            if (commandCounts[code] > 0) {
+                text.append(first ? "" : " ").append(code >= ' ' && code < 0x7f ? String.valueOf((char) code) : "0x" + Integer.toHexString(code)).append('=').append(commandCounts[code]);
+                first = false;
+            }
+        }
+        text.append("} cache hits=").append(cacheHits).append(" misses=").append(cacheMisses);
+        text.append(" retries=").append(retries).append(" timeouts=").append(timeouts);
+        text.append(" latency mean=").append(getLatencyMeanNanos() / 1000).append("us max=").append(latencyMaxNanos / 1000).append("us");
+        return text.toString();
+    }
+}
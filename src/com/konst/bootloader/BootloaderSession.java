@@ -0,0 +1,69 @@
+package com.konst.bootloader;
+
+/**
+ * Возможности загрузчика, опрошенные один раз за соединение.
+ * Хранит имя программатора, сигнатуру, коды устройств, блочный режим, автоинкремент адреса
+ * и поддержку сжатых блоков, если она опрашивалась.
+ */
+public class BootloaderSession {
+    private final String programmerId;
+    private final int signature0;
+    private final int signature1;
+    private final int signature2;
+    private final byte[] partCodes;                                         // Device codes from 't'-command.
+    private final int blockSize;                                            // 0 if block mode is not supported.
+    private final boolean autoincrement;
+    private final boolean compressed;                                       // Accepts 'Z' blocks in PackBits format.
+
+    /* Constructor */
+    BootloaderSession(String programmerId, int sig0, int sig1, int sig2, byte[] partCodes, int blockSize, boolean autoincrement, boolean compressed) {
+        this.programmerId = programmerId;
+        signature0 = sig0;
+        signature1 = sig1;
+        signature2 = sig2;
+        this.partCodes = partCodes;
+        this.blockSize = blockSize;
+        this.autoincrement = autoincrement;
+        this.compressed = compressed;
+    }
+
+    public String getProgrammerId() {
+        return programmerId;
+    }
+
+    public long getSignature0() {
+        return signature0;
+    }
+
+    public long getSignature1() {
+        return signature1;
+    }
+
+    public long getSignature2() {
+        return signature2;
+    }
+
+    public byte[] getPartCodes() {
+        return partCodes.clone();
+    }
+
+    public boolean isBlockMode() {
+        return blockSize > 0;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public boolean isAutoincrement() {
+        return autoincrement;
+    }
+
+    /**
+     * Принимает ли загрузчик сжатые блоки записи Flash 'Z'.
+     * @return true - поддерживается и включено в {@link AVRProgrammer#setCompression(boolean)}.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+}
@@ -0,0 +1,260 @@
+package com.konst.bootloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Пакет изменений прошивки относительно установленной версии.
+ * Готовится заранее из двух фаилов HEX: хэш базовой прошивки, хэш новой прошивки и отличающиеся страницы Flash.
+ * После каждого успешного программирования в зарезервированную область EEPROM пишется манифест
+ * с хэшем страниц прошивки, см. {@link AVRProgrammer#setManifestAddress(int)}.
+ * {@link AVRProgrammer#doDelta(AVRDevice, DeltaPackage)} подтверждает установленную версию одним
+ * коротким чтением манифеста и передает только измененные страницы, без чтения всей Flash.
+ */
+public class DeltaPackage {
+    public static final int MANIFEST_SIZE = 20;                             // Bytes of manifest in EEPROM.
+    static final int DIGEST_SIZE = 16;                                      // Truncated SHA-256 of pages.
+    private static final int MAGIC = 0x41564450;                            // "AVDP".
+    private static final int VERSION = 1;
+    private static final byte[] MANIFEST_MAGIC = {'A', 'V', 'M'};           // Cleared while Flash is rewritten.
+    private static final int MANIFEST_VERSION = 1;
+    private final int flashSize;
+    private final int pageSize;
+    private final byte[] baseDigest;
+    private final byte[] targetDigest;
+    private final HEXFile pages;                                            // Changed pages, others absent.
+    private final int[] changed;                                            // Addresses of changed pages, ascending.
+
+    private DeltaPackage(int _flashSize, int _pageSize, byte[] _baseDigest, byte[] _targetDigest, HEXFile _pages, int[] _changed) {
+        flashSize = _flashSize;
+        pageSize = _pageSize;
+        baseDigest = _baseDigest;
+        targetDigest = _targetDigest;
+        pages = _pages;
+        changed = _changed;
+    }
+
+    /**
+     * Подготовить пакет изменений из двух фаилов HEX.
+     * @param device   микроконтроллер, нужен размер Flash и страницы.
+     * @param isBase   фаил установленной прошивки.
+     * @param isTarget фаил новой прошивки.
+     * @param listener слушатель сообщений разбора фаилов.
+     * @return Пакет изменений.
+     * @throws Exception Размер страницы неизвестен или ошибка в фаилах.
+     */
+    public static DeltaPackage create(AVRDevice device, InputStream isBase, InputStream isTarget, BootloaderListener listener) throws Exception {
+        if (device.getPageSize() <= 0) {
+            throw new Exception("Device page size is not known!");
+        }
+        int pageSize = (int) device.getPageSize();
+        HEXFile base = new HEXFile(device.getFlashSize(), pageSize, (byte) 0xff, listener);
+        base.readFile(isBase);
+        HEXFile target = new HEXFile(device.getFlashSize(), pageSize, (byte) 0xff, listener);
+        target.readFile(isTarget);
+        return create(base, target, pageSize, listener);
+    }
+
+    /**
+     * Подготовить пакет изменений из разобранных прошивок.
+     * @param base     установленная прошивка.
+     * @param target   новая прошивка того же размера Flash.
+     * @param pageSize размер страницы Flash.
+     * @param listener слушатель сообщений.
+     * @return Пакет изменений.
+     * @throws Exception Ошибка чтения прошивок.
+     */
+    static DeltaPackage create(HEXFile base, HEXFile target, int pageSize, BootloaderListener listener) throws Exception {
+        int flashSize = target.getSize();
+        HEXFile pages = new HEXFile(flashSize, pageSize, (byte) 0xff, listener);
+        byte[] before = new byte[pageSize];
+        byte[] after = new byte[pageSize];
+        int[] changed = new int[flashSize / pageSize];
+        int count = 0;
+
+        for (int address = 0; address + pageSize <= flashSize; address += pageSize) {
+            pageContents(base, address, before);
+            pageContents(target, address, after);
+            if (!Arrays.equals(before, after)) {
+                for (int i = 0; i < pageSize; i++) {
+                    pages.setData(address + i, after[i]);
+                }
+                changed[count++] = address;
+            }
+        }
+        if (count > 0) {
+            pages.setUsedRange(changed[0], changed[count - 1] + pageSize - 1);
+        }
+        return new DeltaPackage(flashSize, pageSize, digest(base, pageSize), digest(target, pageSize), pages, Arrays.copyOf(changed, count));
+    }
+
+    /**
+     * Хэш содержимого Flash после программирования прошивки: SHA-256 размера страницы,
+     * адресов и данных всех незаполненных 0xff страниц, первые {@link #DIGEST_SIZE} байт.
+     * Байты вне используемого диапазона прошивки считаются стертыми.
+     * @param image    прошивка с используемым диапазоном.
+     * @param pageSize размер страницы Flash.
+     * @return Хэш.
+     * @throws Exception Ошибка чтения прошивки.
+     */
+    static byte[] digest(HEXFile image, int pageSize) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] page = new byte[pageSize];
+        digest.update(intBytes(pageSize));
+        for (int address = 0; address + pageSize <= image.getSize(); address += pageSize) {
+            if (pageContents(image, address, page)) {
+                digest.update(intBytes(address));
+                digest.update(page);
+            }
+        }
+        return Arrays.copyOf(digest.digest(), DIGEST_SIZE);
+    }
+
+    /**
+     * Содержимое страницы Flash после программирования прошивки.
+     * @param image   прошивка с используемым диапазоном.
+     * @param address адрес страницы.
+     * @param page    буфер страницы.
+     * @return false - страница стерта, все байты 0xff.
+     * @throws Exception Ошибка чтения прошивки.
+     */
+    private static boolean pageContents(HEXFile image, int address, byte[] page) throws Exception {
+        Arrays.fill(page, (byte) 0xff);
+        int from = Math.max(address, image.getRangeStart());
+        int to = Math.min(address + page.length - 1, image.getRangeEnd());
+        if (from > to || image.isFilled(from, to, (byte) 0xff)) {
+            return false;
+        }
+        image.copyData(from, page, from - address, to - from + 1);
+        return true;
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    /**
+     * Манифест в EEPROM: "AVM", версия и хэш прошивки.
+     * @param digest хэш прошивки, см. {@link #digest(HEXFile, int)}.
+     * @return Байты манифеста.
+     */
+    static byte[] manifest(byte[] digest) {
+        byte[] manifest = new byte[MANIFEST_SIZE];
+        System.arraycopy(MANIFEST_MAGIC, 0, manifest, 0, MANIFEST_MAGIC.length);
+        manifest[MANIFEST_MAGIC.length] = MANIFEST_VERSION;
+        System.arraycopy(digest, 0, manifest, MANIFEST_SIZE - DIGEST_SIZE, DIGEST_SIZE);
+        return manifest;
+    }
+
+    /**
+     * Сохранить пакет в двоичном виде для передачи на устройства.
+     * @param outputStream поток для записи.
+     * @throws IOException Ошибка записи.
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(flashSize);
+        out.writeInt(pageSize);
+        out.write(baseDigest);
+        out.write(targetDigest);
+        out.writeInt(changed.length);
+        byte[] blank = new byte[pageSize];
+        Arrays.fill(blank, (byte) 0xff);
+        for (int address : changed) {
+            byte[] page = pages.getPage(address / pageSize); // Pages of delta are Flash pages.
+            out.writeInt(address);
+            out.write(page == null ? blank : page); // Page erased in new firmware.
+        }
+        out.flush();
+    }
+
+    /**
+     * Загрузить пакет, сохраненный {@link #write(OutputStream)}.
+     * @param inputStream поток пакета.
+     * @param listener    слушатель для вывода сообщений.
+     * @return Пакет изменений.
+     * @throws Exception Ошибка чтения или неверный формат.
+     */
+    public static DeltaPackage read(InputStream inputStream, BootloaderListener listener) throws Exception {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Wrong delta package format!");
+        }
+
+        int flashSize = in.readInt();
+        int pageSize = in.readInt();
+        if (flashSize <= 0 || pageSize <= 0 || flashSize % pageSize != 0) {
+            throw new IOException("Wrong delta package format, bad Flash or page size!");
+        }
+        byte[] baseDigest = new byte[DIGEST_SIZE];
+        in.readFully(baseDigest);
+        byte[] targetDigest = new byte[DIGEST_SIZE];
+        in.readFully(targetDigest);
+        int count = in.readInt();
+        if (count < 0 || count > flashSize / pageSize) {
+            throw new IOException("Wrong delta package format, bad page count!");
+        }
+
+        HEXFile pages = new HEXFile(flashSize, pageSize, (byte) 0xff, listener);
+        int[] changed = new int[count];
+        byte[] page = new byte[pageSize];
+        for (int i = 0; i < count; i++) {
+            int address = in.readInt();
+            if (address % pageSize != 0 || address < 0 || address >= flashSize || i > 0 && address <= changed[i - 1]) {
+                throw new IOException("Wrong delta package format, bad page address!");
+            }
+            in.readFully(page);
+            for (int k = 0; k < pageSize; k++) {
+                pages.setData(address + k, page[k]);
+            }
+            changed[i] = address;
+        }
+        if (count > 0) {
+            pages.setUsedRange(changed[0], changed[count - 1] + pageSize - 1);
+        }
+        return new DeltaPackage(flashSize, pageSize, baseDigest, targetDigest, pages, changed);
+    }
+
+    public int getFlashSize() {
+        return flashSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Сколько страниц Flash передается.
+     * @return Количество измененных страниц.
+     */
+    public int getChangedPages() {
+        return changed.length;
+    }
+
+    byte[] getBaseDigest() {
+        return baseDigest;
+    }
+
+    byte[] getTargetDigest() {
+        return targetDigest;
+    }
+
+    /**
+     * Данные измененных страниц, остальные страницы не заполнены.
+     * @return Прошивка из измененных страниц.
+     */
+    HEXFile getPages() {
+        return pages;
+    }
+
+    int getChangedAddress(int index) {
+        return changed[index];
+    }
+}
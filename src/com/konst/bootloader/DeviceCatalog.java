@@ -0,0 +1,130 @@
+package com.konst.bootloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Каталог микроконтроллеров с индексом по сигнатуре.
+ * Строится один раз из папки с фаилами AVR Studio и сохраняется в компактном двоичном виде,
+ * при загрузке XML не разбирается.
+ */
+public class DeviceCatalog {
+    private static final int MAGIC = 0x41565243;                                        // "AVRC".
+    private static final int VERSION = 1;
+    private final Map<Integer, AVRDevice> devices = new HashMap<>();                    // Devices by signature.
+
+    /**
+     * Построить каталог из фаилов описания AVR Studio.
+     * @param directory папка с XML фаилами микроконтроллеров.
+     * @param listener  для сообщений.
+     * @return Каталог.
+     * @throws Exception Ошибка чтения фаила описания.
+     */
+    public static DeviceCatalog build(File directory, BootloaderListener listener) throws Exception {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.toLowerCase().endsWith(".xml");
+            }
+        });
+        if (files == null) {
+            throw new Exception("Cannot read device directory " + directory + '!');
+        }
+
+        DeviceCatalog catalog = new DeviceCatalog();
+        for (File file : files) {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                catalog.add(new AVRDevice(inputStream, listener));
+            } finally {
+                inputStream.close();
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Загрузить каталог из двоичного вида.
+     * @param inputStream поток каталога.
+     * @return Каталог.
+     * @throws IOException Ошибка чтения или неверный формат.
+     */
+    public static DeviceCatalog read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Wrong device catalog format!");
+        }
+
+        DeviceCatalog catalog = new DeviceCatalog();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int signature = in.readInt();
+            int flashSize = in.readInt();
+            int eepromSize = in.readInt();
+            int pageSize = in.readInt();
+            catalog.add(new AVRDevice(flashSize, eepromSize, pageSize, signature >> 16 & 0xff, signature >> 8 & 0xff, signature & 0xff));
+        }
+        return catalog;
+    }
+
+    /**
+     * Сохранить каталог в двоичном виде.
+     * @param outputStream поток для записи.
+     * @throws IOException Ошибка записи.
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(devices.size());
+        for (Map.Entry<Integer, AVRDevice> entry : devices.entrySet()) {
+            AVRDevice device = entry.getValue();
+            out.writeInt(entry.getKey());
+            out.writeInt(device.getFlashSize());
+            out.writeInt(device.getEEPROMSize());
+            out.writeInt((int) device.getPageSize());
+        }
+        out.flush();
+    }
+
+    /**
+     * Добавить микроконтроллер, прежний с той же сигнатурой заменяется.
+     * @param device микроконтроллер.
+     */
+    public void add(AVRDevice device) {
+        devices.put(key(device.getSignature0(), device.getSignature1(), device.getSignature2()), device);
+    }
+
+    /**
+     * Найти микроконтроллер по сигнатуре.
+     * @param sig0 Сигнатура 0.
+     * @param sig1 Сигнатура 1.
+     * @param sig2 Сигнатура 2.
+     * @return Микроконтроллер или null если нет в каталоге.
+     */
+    public AVRDevice find(long sig0, long sig1, long sig2) {
+        return devices.get(key(sig0, sig1, sig2));
+    }
+
+    /**
+     * Все микроконтроллеры каталога.
+     * @return Микроконтроллеры.
+     */
+    public Collection<AVRDevice> getDevices() {
+        return Collections.unmodifiableCollection(devices.values());
+    }
+
+    private static int key(long sig0, long sig1, long sig2) {
+        return (int) ((sig0 & 0xff) << 16 | (sig1 & 0xff) << 8 | sig2 & 0xff);
+    }
+}
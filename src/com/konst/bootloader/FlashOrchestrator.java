@@ -0,0 +1,160 @@
+package com.konst.bootloader;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Программирование нескольких микроконтроллеров одновременно.
+ * Прошивка разбирается один раз и общая для всех программаторов,
+ * каждый программатор работает в своем потоке из ограниченного пула.
+ * Прогресс каждого устройства идет в слушатель его программатора,
+ * ошибка одного устройства не останавливает остальные.
+ */
+public class FlashOrchestrator {
+    private final AVRDevice device;                                         // Shared device description.
+    private final HEXFile image;                                            // Shared parsed firmware, read only.
+    private final ExecutorService executor;
+
+    /**
+     * Конструктор с фаилом описания микроконтроллера.
+     * @param isDevice фаил микроконтроллера
+     * @param isHex    фаил прошивки
+     * @param threads  сколько устройств программировать одновременно.
+     * @param listener слушатель сообщений разбора фаилов.
+     * @throws Exception Ошибка в фаилах.
+     */
+    public FlashOrchestrator(InputStream isDevice, InputStream isHex, int threads, BootloaderListener listener) throws Exception {
+        this(new AVRDevice(isDevice, listener), isHex, threads, listener);
+    }
+
+    /**
+     * Конструктор для известного микроконтроллера, например из каталога.
+     * @param _device  микроконтроллер
+     * @param isHex    фаил прошивки
+     * @param threads  сколько устройств программировать одновременно.
+     * @param listener слушатель сообщений разбора фаила.
+     * @throws Exception Ошибка в фаиле прошивки.
+     */
+    public FlashOrchestrator(AVRDevice _device, InputStream isHex, int threads, BootloaderListener listener) throws Exception {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one programming thread is needed!");
+        }
+        device = _device;
+        image = new HEXFile(device.getFlashSize(), HEXFile.pageSize(device), (byte) 0xff, listener);
+        image.readFile(isHex);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Запустить программирование одного устройства.
+     * @param name       имя устройства для результата.
+     * @param programmer программатор устройства, не используется другими заданиями.
+     * @return Результат, исключение программирования в нем, а не в {@link Future#get()}.
+     */
+    public Future<Result> submit(final String name, final AVRProgrammer programmer) {
+        return executor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                long start = System.nanoTime();
+                Exception error = null;
+                try {
+                    programmer.doJob(device, image);
+                    programmer.doDeviceDependent();
+                    if (!programmer.isVerified()) {
+                        error = new Exception("Flash contents differ from HEX file after programming!");
+                    }
+                } catch (Exception e) {
+                    error = e;
+                }
+                return new Result(name, error, System.nanoTime() - start, programmer.getMetrics());
+            }
+        });
+    }
+
+    /**
+     * Программировать все устройства и дождаться окончания.
+     * @param programmers программаторы по именам устройств.
+     * @return Результаты в порядке программаторов.
+     * @throws InterruptedException Ожидание прервано.
+     */
+    public List<Result> flashAll(Map<String, ? extends AVRProgrammer> programmers) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<>(programmers.size());
+        for (Map.Entry<String, ? extends AVRProgrammer> entry : programmers.entrySet()) {
+            futures.add(submit(entry.getKey(), entry.getValue()));
+        }
+
+        List<Result> results = new ArrayList<>(futures.size());
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause()); // Task catches all exceptions.
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Остановить потоки после окончания запущенных заданий.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public AVRDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Результат программирования одного устройства.
+     */
+    public static class Result {
+        private final String name;
+        private final Exception error;
+        private final long nanos;
+        private final BootloaderMetrics metrics;
+
+        Result(String name, Exception error, long nanos, BootloaderMetrics metrics) {
+            this.name = name;
+            this.error = error;
+            this.nanos = nanos;
+            this.metrics = metrics;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * Ошибка программирования.
+         * @return null если устройство запрограммировано.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public BootloaderMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return name + (error == null ? ": done in " : ": failed (" + error.getMessage() + ") after ") + nanos / 1000000 + " ms";
+        }
+    }
+}
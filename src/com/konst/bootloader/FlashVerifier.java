@@ -0,0 +1,148 @@
+package com.konst.bootloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Сравнение Flash с прошивкой по мере чтения.
+ * Прочитанные байты сразу сравниваются с исходными данными,
+ * второй буфер размером с Flash не нужен.
+ */
+class FlashVerifier {
+    private final HEXFile source;                                           // Expected contents.
+    private final boolean collectAll;                                       // Keep reading after first mismatch.
+    private final List<Range> mismatches = new ArrayList<>();
+    private long compareNanos;                                              // Time spent comparing.
+    private final byte[] pending;                                           // Bytes read one by one, compared by page.
+    private int pendingStart;
+    private int pendingLength;
+
+    /* Constructor */
+    FlashVerifier(HEXFile source, boolean collectAll) {
+        this.source = source;
+        this.collectAll = collectAll;
+        pending = new byte[source.getPageSize()];
+    }
+
+    protected int getRangeStart() {
+        return source.getRangeStart();
+    }
+
+    protected int getRangeEnd() {
+        return source.getRangeEnd();
+    }
+
+    /**
+     * Сравнить прочитанный байт.
+     * Байты подряд накапливаются и сравниваются страницей, время замеряется на страницу, а не на байт.
+     * @param address адрес байта.
+     * @param value прочитанное значение.
+     * @throws Exception Адрес вне буфера прошивки.
+     */
+    void compare(long address, byte value) throws Exception {
+        if (pendingLength > 0 && (address != pendingStart + pendingLength || pendingLength == pending.length)) {
+            finish();
+        }
+        if (pendingLength == 0) {
+            pendingStart = (int) address;
+        }
+        pending[pendingLength++] = value;
+    }
+
+    /**
+     * Сравнить накопленные байты, вызывается после чтения.
+     * @throws Exception Адрес вне буфера прошивки.
+     */
+    void finish() throws Exception {
+        int length = pendingLength;
+        pendingLength = 0;
+        if (length > 0) {
+            compareBlock(pendingStart, pending, length);
+        }
+    }
+
+    /**
+     * Сравнить прочитанный блок.
+     * @param address адрес первого байта блока.
+     * @param buffer прочитанные данные.
+     * @param length количество байт.
+     * @throws Exception Адрес вне буфера прошивки.
+     */
+    void compare(int address, byte[] buffer, int length) throws Exception {
+        finish(); // Keep mismatches in reading order.
+        compareBlock(address, buffer, length);
+    }
+
+    private void compareBlock(int address, byte[] buffer, int length) throws Exception {
+        long start = System.nanoTime();
+        int offset = 0;
+        int mismatch;
+        while ((mismatch = source.findMismatch(address + offset, buffer, offset, length - offset)) != -1) {
+            addMismatch(mismatch);
+            offset = mismatch - address + 1; // Continue after mismatched byte.
+        }
+        compareNanos += System.nanoTime() - start;
+    }
+
+    private void addMismatch(int address) {
+        if (!mismatches.isEmpty()) {
+            Range last = mismatches.get(mismatches.size() - 1);
+            if (address >= last.start && address <= last.end + 1) {
+                last.end = Math.max(last.end, address); // Extend current range.
+                return;
+            }
+        }
+        mismatches.add(new Range(address));
+    }
+
+    /**
+     * Можно ли прекратить чтение.
+     * Несовпадение в байтах, прочитанных по одному, находится не позже конца страницы.
+     * @return true - найдено несовпадение и не нужно искать остальные.
+     */
+    boolean isDone() {
+        return !collectAll && !mismatches.isEmpty();
+    }
+
+    /**
+     * Время, затраченное на сравнение.
+     * @return Наносекунды.
+     */
+    long getCompareNanos() {
+        return compareNanos;
+    }
+
+    /**
+     * Несовпадающие области в порядке чтения.
+     * @return Пустой список если Flash совпадает с прошивкой.
+     */
+    List<Range> getMismatches() {
+        return Collections.unmodifiableList(mismatches);
+    }
+
+    /**
+     * Область несовпадения.
+     */
+    static class Range {
+        private final int start;
+        private int end;                                                    // Inclusive.
+
+        Range(int address) {
+            start = end = address;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return start == end ? "0x" + Integer.toHexString(start) : "0x" + Integer.toHexString(start) + "-0x" + Integer.toHexString(end);
+        }
+    }
+}
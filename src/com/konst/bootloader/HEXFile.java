@@ -1,8 +1,11 @@
 package com.konst.bootloader;
 
-import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 /*
  * Created with IntelliJ IDEA.
@@ -12,161 +15,314 @@ import java.io.InputStreamReader;
  * To change this template use File | Settings | File Templates.
  */
 class HEXFile {
-    private final HandlerBootloader handler;
-    private final byte[] data;                                              // Holds the data bytes.
+    static final int DEFAULT_PAGE_SIZE = 256;                               // Page size when device page size is unknown.
+    private static final int MAGIC = 0x41565249;                            // "AVRI", binary image.
+    private static final int VERSION = 1;
+    private static final int MAX_LINE = 1 + (4 + 255 + 1) * 2;              // Colon and hex pairs of longest record.
+    private static final byte[] HEX_DIGITS = new byte[128];                 // Nibble value by character, -1 if not hex.
+
+    static {
+        Arrays.fill(HEX_DIGITS, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_DIGITS['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_DIGITS['a' + i] = (byte) (10 + i);
+            HEX_DIGITS['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final BootloaderListener listener;
+    private final byte[][] pages;                                           // Data pages by page index, null if not used.
+    private final int pageSize;                                             // Size of one page.
+    private byte fill;                                                      // Value of bytes in absent pages.
     private int start;
     private int end;                                                        // Used data range.
     private final int size;                                                 // Size of data buffer.
 
     /* Constructor */
-    public HEXFile(int bufferSize, byte value, HandlerBootloader _handler) throws Exception {
-        handler = _handler;
+    public HEXFile(int bufferSize, byte value, BootloaderListener _listener) throws Exception {
+        this(bufferSize, DEFAULT_PAGE_SIZE, value, _listener);
+    }
+
+    public HEXFile(int bufferSize, int _pageSize, byte value, BootloaderListener _listener) throws Exception {
+        listener = _listener;
         if (bufferSize <= 0) {
             throw new Exception("Cannot have zero-size HEX buffer!");
         }
+        if (_pageSize <= 0) {
+            throw new Exception("Cannot have zero-size HEX page!");
+        }
 
-        data = new byte[bufferSize];
+        pageSize = _pageSize;
+        pages = new byte[(bufferSize + pageSize - 1) / pageSize][];
         size = bufferSize;
         clearAll(value);
     }
 
-    private void parseRecord(final String hexLine, HEXRecord record) throws Exception {
-        Utility Util = new Utility();
+    /**
+     * Размер страницы буфера прошивки для микроконтроллера.
+     * @param device микроконтроллер.
+     * @return Размер страницы Flash или {@link #DEFAULT_PAGE_SIZE} если неизвестен.
+     */
+    static int pageSize(AVRDevice device) {
+        return device.getPageSize() > 0 ? (int) device.getPageSize() : DEFAULT_PAGE_SIZE;
+    }
+
+    /* Read-only view of the same data with another used range */
+    private HEXFile(HEXFile source, int _start, int _end) {
+        listener = source.listener;
+        pages = source.pages;
+        pageSize = source.pageSize;
+        fill = source.fill;
+        size = source.size;
+        start = _start;
+        end = _end;
+    }
+
+    /* Methods */
+    /**
+     * Прочитать фаил прошивки.
+     * Разбор идет прямо по байтам потока в буфер страниц, без строк и массивов на каждую запись.
+     * @param inputStream поток фаила в формате Intel HEX.
+     * @throws Exception Ошибка формата фаила.
+     */
+    protected void readFile(InputStream inputStream) throws Exception {
+        byte[] buffer = new byte[4096];                                                     // Stream chunk.
+        byte[] line = new byte[MAX_LINE];                                                   // Current record.
+        int length = 0;                                                                     // Record characters.
+        int baseAddress = 0;                                                                // Base address for extended addressing modes.
+
+        /* Prepare */
+        start = size;
+        end = 0;
+        /* Parse records */
+        try {
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    byte c = buffer[i];
+                    if (c != '\r' && c != '\n') {
+                        if (length == line.length) {
+                            throw new Exception("Wrong HEX file format, record too long! " + "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
+                        }
+                        line[length++] = c;
+                        continue;
+                    }
+                    if (length == 0) {
+                        continue; // Empty line or second char of CR LF.
+                    }
+
+                    baseAddress = parseLine(line, length, baseAddress);
+                    length = 0;
+                    if (baseAddress == -1) {// End of file record ?
+                        listener.onCloseDialog();
+                        return;
+                    }
+                }
+            }
+            if (length > 0 && parseLine(line, length, baseAddress) == -1) {// Last line without line break.
+                listener.onCloseDialog();
+                return;
+            }
+        } catch (Exception e) {
+            throw new Exception(e);
+        } finally {
+            inputStream.close();
+        }
+        listener.onCloseDialog();
+        /* We should not end up here */
+        throw new Exception("Premature end of file encountered! Make sure file " + "contains an EOF-record.");
+    }
 
-        if (hexLine.length() < 11) {                                             // At least 11 characters.
-            throw new Exception("Wrong HEX file format, missing fields! " + "Line from file was: (" + hexLine + ").");
+    /**
+     * Разобрать одну запись и записать данные в буфер после проверки контрольной суммы.
+     * @param line   символы записи.
+     * @param length количество символов.
+     * @param baseAddress текущий базовый адрес.
+     * @return Новый базовый адрес, -1 для записи конца фаила.
+     * @throws Exception Ошибка формата записи.
+     */
+    private int parseLine(byte[] line, int length, int baseAddress) throws Exception {
+        if (length < 11) {                                                                  // At least 11 characters.
+            throw new Exception("Wrong HEX file format, missing fields! " + "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
         }
 
 	    /* Check format for line */
-        if (hexLine.charAt(0) != ':') {// Always start with colon.
-            throw new Exception("Wrong HEX file format, does not start with colon! " + "Line from file was: (" + hexLine + ").");
+        if (line[0] != ':') {// Always start with colon.
+            throw new Exception("Wrong HEX file format, does not start with colon! " + "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
         }
 
 	    /* Parse length, offset and type */
-        record.setLength(Util.convertHex(hexLine.substring(1, 3)));
-        record.setOffset(Util.convertHex(hexLine.substring(3, 7)));
-        record.setType(Util.convertHex(hexLine.substring(7, 9)));
+        int recordLength = hexByte(line, 1);
+        int offset = hexByte(line, 3) << 8 | hexByte(line, 5);
+        int type = hexByte(line, 7);
 
 	    /* We now know how long the record should be */
-        if (hexLine.length() < 11 + (record.getLength() << 1)) {
-            throw new Exception("Wrong HEX file format, missing fields! " + "Line from file was: (" + hexLine + ").");
+        if (length < 11 + (recordLength << 1)) {
+            throw new Exception("Wrong HEX file format, missing fields! " + "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
         }
 
 	    /* Process checksum */
-        int checksum = record.getLength();
-        checksum += record.getOffset() >> 8 & 0xff;
-        checksum += record.getOffset() & 0xff;
-        checksum += record.getType();
+        int checksum = recordLength + (offset >> 8) + offset + type + hexByte(line, 9 + (recordLength << 1));
+        int address = baseAddress + offset;
+
+        if (type == 0x00 && address + recordLength > size) {// Data record ?
+            throw new Exception("HEX file defines data outside buffer limits! " +
+                    "Make sure file does not contain data outside device " +
+                    "memory limits. " +
+                    "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
+        }
 
 	    /* Parse data fields */
-        if (record.getLength() != 0) {
-
-            record.setData(new byte[record.getLength()]);
-            /* Read data from record */
-            for (long recordPos = 0; // Position inside record data fields.
-                 recordPos < record.getLength(); recordPos++) {
-                record.getData()[(int) recordPos] = (byte) Util.convertHex(hexLine.substring((int) (9 + (recordPos << 1)), (int) (9 + (recordPos << 1)) + 2));
-                checksum += record.getData()[(int) recordPos];
+        int value = 0;
+        for (int pos = 0; pos < recordLength; pos++) {
+            int b = hexByte(line, 9 + (pos << 1));
+            checksum += b;
+            if (pos < 2) {
+                value = value << 8 | b; // Address records carry two bytes.
             }
         }
 
 	    /* Correct checksum? */
-        checksum += Util.convertHex(hexLine.substring(9 + (record.getLength() << 1), 9 + (record.getLength() << 1) + 2));
         if ((checksum & 0xff) != 0) {
-            throw new Exception("Wrong checksum for HEX record! " + "Line from file was: (" + hexLine + ").");
+            throw new Exception("Wrong checksum for HEX record! " + "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
         }
-    }
-
-    /* Methods */
-    protected void readFile(InputStream inputStream) throws Exception {//public void readFile(final String _filename) throws Exception { // Read data from HEX file.
-
-        HEXRecord rec = new HEXRecord();                                                    // Temp record.
-        BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
 
-        /* Prepare */
-        start = size;
-        end = 0;
-        /* Parse records */
-        try {
-            int baseAddress = 0; // Base address for extended addressing modes.
-            String hexLine; // Contains one line of the HEX file.
-            while ((hexLine = br.readLine()) != null) {
-
-            /* Process record according to type */
-                parseRecord(hexLine, rec);
-                switch (rec.getType()) {
-                    case 0x00: // Data record ?
-                    /* Copy data */
-                        if (baseAddress + rec.getOffset() + rec.getLength() > size) {
-                            //br.close();
-                            throw new Exception("HEX file defines data outside buffer limits! " +
-                                    "Make sure file does not contain data outside device " +
-                                    "memory limits. " +
-                                    "Line from file was: (" + hexLine + ").");
-                        }
+	    /* Process record according to type */
+        switch (type) {
+            case 0x00: // Data record ?
+			    /* Copy data, only checked record goes to buffer */
+                for (int pos = 0; pos < recordLength; pos++) {
+                    putData(address + pos, (byte) hexByte(line, 9 + (pos << 1)));
+                }
+			    /* Update byte usage */
+                if (recordLength > 0) {
+                    if (address < start) {
+                        start = address;
+                    }
+                    if (address + recordLength - 1 > end) {
+                        end = address + recordLength - 1;
+                    }
+                }
+                return baseAddress;
+            case 0x02: // Extended segment address record ?
+                return value << 4;
+            case 0x03: // Start segment address record ?
+                return baseAddress; // Ignore it, since we have no influence on execution start address.
+            case 0x04: // Extended linear address record ?
+                return value << 16;
+            case 0x05: // Start linear address record ?
+                return baseAddress; // Ignore it, since we have no influence on execution start address.
+            case 0x01: // End of file record ?
+                return -1;
+            default:
+                throw new Exception("Unsupported HEX record format! " + "Line from file was: (" + new String(line, 0, length, "US-ASCII") + ").");
+        }
+    }
 
-                        for (long dataPos = 0; // Data position in record.
-                             dataPos < rec.getLength(); dataPos++) {
-                            data[(int) (baseAddress + rec.getOffset() + dataPos)] = rec.getData()[(int) dataPos];
-                        }
+    private static int hexByte(byte[] line, int pos) throws Exception {
+        int high = line[pos] < 0 ? -1 : HEX_DIGITS[line[pos]];
+        int low = line[pos + 1] < 0 ? -1 : HEX_DIGITS[line[pos + 1]];
+        if ((high | low) < 0) {
+            throw new Exception("Invalid hex digit found!");
+        }
+        return high << 4 | low;
+    }
 
-				    /* Update byte usage */
-                        if (baseAddress + rec.getOffset() < start) {
-                            start = baseAddress + rec.getOffset();
-                        }
+    /**
+     * Сохранить разобранную прошивку в двоичном виде.
+     * Пишутся только страницы с данными, отсутствующие страницы читаются как байт заполнения.
+     * @param outputStream поток для записи.
+     * @throws IOException Ошибка записи.
+     */
+    protected void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(size);
+        out.writeInt(pageSize);
+        out.writeByte(fill);
+        out.writeInt(start);
+        out.writeInt(end);
+        int count = 0;
+        for (byte[] page : pages) {
+            if (page != null) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int index = 0; index < pages.length; index++) {
+            if (pages[index] != null) {
+                out.writeInt(index);
+                out.write(pages[index]);
+            }
+        }
+        out.flush();
+    }
 
-                        if (baseAddress + rec.getOffset() + rec.getLength() - 1 > end) {
-                            end = baseAddress + rec.getOffset() + rec.getLength() - 1;
-                        }
+    /**
+     * Загрузить прошивку, сохраненную {@link #write(OutputStream)}, без разбора HEX.
+     * @param inputStream поток прошивки.
+     * @param _listener   слушатель для вывода сообщений.
+     * @return Прошивка.
+     * @throws Exception Ошибка чтения или неверный формат.
+     */
+    protected static HEXFile read(InputStream inputStream, BootloaderListener _listener) throws Exception {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Wrong binary image format!");
+        }
 
-                        break;
-                    case 0x02: // Extended segment address record ?
-                        baseAddress = rec.getData()[0] << 8 | rec.getData()[1];
-                        baseAddress <<= 4;
-                        break;
-                    case 0x03: // Start segment address record ?
-
-                        break; // Ignore it, since we have no influence on execution start address.
-                    case 0x04: // Extended linear address record ?
-                        baseAddress = rec.getData()[0] << 8 | rec.getData()[1];
-                        baseAddress <<= 16;
-                        break;
-                    case 0x05: // Start linear address record ?
-
-                        break; // Ignore it, since we have no influence on execution start address.
-                    case 0x01: // End of file record ?
-                        br.close();
-                        handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
-                        return;
-                    default:
-                        //br.close();
-                        throw new Exception("Unsupported HEX record format! " + "Line from file was: (" + hexLine + ").");
-                }
+        int size = in.readInt();
+        int pageSize = in.readInt();
+        HEXFile image = new HEXFile(size, pageSize, in.readByte(), _listener);
+        int start = in.readInt();
+        int end = in.readInt();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= image.pages.length) {
+                throw new IOException("Wrong binary image format, page outside buffer!");
             }
-        } catch (Exception e) {
-            throw new Exception(e);
-        } finally{
-            br.close();
+            image.pages[index] = new byte[pageSize];
+            in.readFully(image.pages[index]);
         }
-        //br.close();
-        handler.obtainMessage(HandlerBootloader.Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
-        /* We should not end up here */
-        throw new Exception("Premature end of file encountered! Make sure file " + "contains an EOF-record.");
+        image.start = start;
+        image.end = end;
+        return image;
     }
 
     protected void setUsedRange(int _start, int _end) throws Exception {// Sets the used range.
+        checkRange(_start, _end);
+        start = _start;
+        end = _end;
+    }
+
+    /**
+     * Прошивка с другим используемым диапазоном без копирования данных.
+     * Данные общие с исходной прошивкой, поэтому вид только для чтения,
+     * а исходную прошивку нельзя менять пока вид используется.
+     * Один разобранный фаил так можно программировать в несколько потоков.
+     * @param _start первый адрес диапазона.
+     * @param _end   последний адрес диапазона.
+     * @return Вид прошивки.
+     * @throws Exception Диапазон вне буфера.
+     */
+    protected HEXFile withUsedRange(int _start, int _end) throws Exception {
+        checkRange(_start, _end);
+        return new HEXFile(this, _start, _end);
+    }
+
+    private void checkRange(int _start, int _end) throws Exception {
         if (_start < 0 || _end >= size || _start > _end) {
             throw new Exception("Invalid range! Start must be 0 or larger, end must be " + "inside allowed memory range.");
         }
-
-        start = _start;
-        end = _end;
     }
 
     private void clearAll(byte value) {// Set data buffer to this value.
-        for (int i = 0; i < size; i++) {
-            data[i] = (byte) (value & 0xff);
-        }
+        Arrays.fill(pages, null); // Absent pages read as fill value.
+        fill = value;
     }
 
     protected int getRangeStart() {
@@ -181,7 +337,8 @@ class HEXFile {
         if (address < 0 || address >= size) {
             throw new Exception("Address outside legal range!");
         }
-        return data[address];
+        byte[] page = pages[address / pageSize];
+        return page == null ? fill : page[address % pageSize];
     }
 
     protected void setData(long address, byte value) throws Exception {
@@ -189,48 +346,136 @@ class HEXFile {
             throw new Exception("Address outside legal range!");
         }
 
-        data[(int) address] = value;
+        putData((int) address, value);
     }
 
-    /*long getSize() { return size; }*/
-
-    static class HEXRecord {// Intel HEX file record
-        private int length; // Record length in number of data bytes.
-        private int offset; // Offset address.
-        private int type; // Record type.
-        private byte[] data; // Optional data bytes.
-
-        public int getLength() {
-            return length;
+    private void putData(int address, byte value) {
+        int index = address / pageSize;
+        if (pages[index] == null) {
+            if (value == fill) {
+                return; // Page stays implicit.
+            }
+            pages[index] = new byte[pageSize];
+            Arrays.fill(pages[index], fill);
         }
+        pages[index][address % pageSize] = value;
+    }
 
-        public void setLength(int length) {
-            this.length = length;
+    /**
+     * Скопировать данные в буфер по страницам.
+     * @param address адрес первого байта.
+     * @param buffer  куда копировать.
+     * @param offset  смещение в буфере.
+     * @param length  количество байт.
+     * @throws Exception Адрес вне буфера.
+     */
+    protected void copyData(int address, byte[] buffer, int offset, int length) throws Exception {
+        if (address < 0 || address + length > size) {
+            throw new Exception("Address outside legal range!");
         }
 
-        public int getOffset() {
-            return offset;
+        while (length > 0) {
+            int pos = address % pageSize;
+            int count = Math.min(length, pageSize - pos); // Bytes left in page.
+            byte[] page = pages[address / pageSize];
+            if (page == null) {
+                Arrays.fill(buffer, offset, offset + count, fill);
+            } else {
+                System.arraycopy(page, pos, buffer, offset, count);
+            }
+            address += count;
+            offset += count;
+            length -= count;
         }
+    }
 
-        public void setOffset(int offset) {
-            this.offset = offset;
+    /**
+     * Найти первое несовпадение данных с буфером.
+     * @param address адрес первого байта.
+     * @param buffer  с чем сравнивать.
+     * @param offset  смещение в буфере.
+     * @param length  количество байт.
+     * @return Адрес первого несовпадающего байта или -1.
+     * @throws Exception Адрес вне буфера.
+     */
+    protected int findMismatch(int address, byte[] buffer, int offset, int length) throws Exception {
+        if (address < 0 || address + length > size) {
+            throw new Exception("Address outside legal range!");
         }
 
-        public int getType() {
-            return type;
+        while (length > 0) {
+            int pos = address % pageSize;
+            int count = Math.min(length, pageSize - pos); // Bytes left in page.
+            byte[] page = pages[address / pageSize];
+            for (int i = 0; i < count; i++) {
+                if (buffer[offset + i] != (page == null ? fill : page[pos + i])) {
+                    return address + i;
+                }
+            }
+            address += count;
+            offset += count;
+            length -= count;
         }
+        return -1;
+    }
 
-        public void setType(int type) {
-            this.type = type;
+    /**
+     * Все ли байты диапазона равны значению.
+     * Отсутствующие страницы не просматриваются.
+     * @param from  первый адрес.
+     * @param to    последний адрес включительно.
+     * @param value значение.
+     * @return true - все байты равны значению.
+     */
+    protected boolean isFilled(int from, int to, byte value) {
+        for (int index = from / pageSize; index <= to / pageSize; index++) {
+            byte[] page = pages[index];
+            if (page == null) {
+                if (fill != value) {
+                    return false;
+                }
+                continue;
+            }
+            int first = Math.max(from, index * pageSize) - index * pageSize;
+            int last = Math.min(to, index * pageSize + pageSize - 1) - index * pageSize;
+            for (int i = first; i <= last; i++) {
+                if (page[i] != value) {
+                    return false;
+                }
+            }
         }
+        return true;
+    }
 
-        public byte[] getData() {
-            return data;
-        }
+    protected int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Страница данных.
+     * @param index номер страницы.
+     * @return Данные страницы или null если страница не заполнялась.
+     */
+    protected byte[] getPage(int index) {
+        return pages[index];
+    }
 
-        public void setData(byte... data) {
-            this.data = data;
+    protected int getSize() {
+        return size;
+    }
+
+    /**
+     * Сколько байт данных занято в памяти, незаполненные страницы не хранятся.
+     * @return Размер заполненных страниц и таблицы страниц.
+     */
+    protected long getMemorySize() {
+        long bytes = pages.length * 4L; // Page references.
+        for (byte[] page : pages) {
+            if (page != null) {
+                bytes += page.length;
+            }
         }
+        return bytes;
     }
 }
 
@@ -4,8 +4,9 @@ import android.os.Handler;
 
 /**
  * Обработчик сообщений программатора.
+ * Передает события {@link BootloaderListener} сообщениями Android в поток обработчика.
  */
-public class HandlerBootloader extends Handler {
+public class HandlerBootloader extends Handler implements BootloaderListener {
 
     /**
      * Энумератор сообщений программатора.
@@ -29,4 +30,24 @@ public class HandlerBootloader extends Handler {
         MSG_SHOW_DIALOG
     }
 
+    @Override
+    public void onLog(String message) {
+        obtainMessage(Result.MSG_LOG.ordinal(), message).sendToTarget();
+    }
+
+    @Override
+    public void onShowDialog(int max, String title) {
+        obtainMessage(Result.MSG_SHOW_DIALOG.ordinal(), max, 0, title).sendToTarget();
+    }
+
+    @Override
+    public void onUpdateDialog(int progress) {
+        obtainMessage(Result.MSG_UPDATE_DIALOG.ordinal(), progress, 0).sendToTarget();
+    }
+
+    @Override
+    public void onCloseDialog() {
+        obtainMessage(Result.MSG_CLOSE_DIALOG.ordinal()).sendToTarget();
+    }
+
 }
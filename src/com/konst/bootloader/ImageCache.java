@@ -0,0 +1,261 @@
+package com.konst.bootloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш разобранных прошивок и описаний микроконтроллеров.
+ * Ключ - хэш SHA-256 содержимого фаила, поэтому тот же фаил под другим именем тоже находится.
+ * В памяти хранятся последние использованные записи, пока их размер не больше заданного,
+ * на диске - двоичный вид без разбора HEX и XML.
+ * Записи не меняются после разбора и могут быть общими для нескольких программаторов.
+ */
+public class ImageCache {
+    private static final String IMAGE_SUFFIX = ".img";
+    private static final String DEVICE_SUFFIX = ".dev";
+    private static final int DEVICE_BYTES = 256;                            // Estimated size of parsed device.
+    private final Map<String, Object> memory;                               // LRU of images and devices by key.
+    private final long maxBytes;
+    private long bytes;                                                     // Estimated size of entries in memory.
+    private final File directory;                                           // null - memory only.
+    private long hits;
+    private long misses;
+
+    /**
+     * Кэш только в памяти.
+     * @param _maxBytes сколько байт записей хранить в памяти.
+     */
+    public ImageCache(long _maxBytes) {
+        this(_maxBytes, null);
+    }
+
+    /**
+     * Кэш в памяти и на диске.
+     * Давно не использованные записи вытесняются из памяти, пока их размер больше заданного.
+     * @param _maxBytes  сколько байт записей хранить в памяти.
+     * @param _directory папка для двоичных фаилов кэша, null - только в памяти.
+     */
+    public ImageCache(long _maxBytes, File _directory) {
+        if (_maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be 1 byte or more!");
+        }
+        maxBytes = _maxBytes;
+        memory = new LinkedHashMap<String, Object>(16, 0.75f, true);
+        directory = _directory;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create cache directory " + directory + '!');
+        }
+    }
+
+    /**
+     * Прошивка по содержимому фаила HEX.
+     * @param content    содержимое фаила HEX.
+     * @param flashSize  размер Flash в байтах.
+     * @param pageSize   размер страницы буфера прошивки.
+     * @param listener   слушатель для вывода сообщений.
+     * @param metrics    замеры программатора для попаданий в кэш, может быть null.
+     * @return Разобранная прошивка, только для чтения.
+     * @throws Exception Ошибка в фаиле прошивки.
+     */
+    HEXFile getImage(byte[] content, int flashSize, int pageSize, BootloaderListener listener, MetricsRecorder metrics) throws Exception {
+        String key = hash(content) + '-' + flashSize + '-' + pageSize;
+        HEXFile image = (HEXFile) lookup(key);
+        if (image == null) {
+            File file = file(key, IMAGE_SUFFIX);
+            if (file != null && file.isFile()) {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    image = HEXFile.read(in, listener);
+                } catch (IOException e) {
+                    image = null; // Damaged cache file, parse again.
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        if (image != null) {
+            count(true, metrics);
+            return store(key, image);
+        }
+
+        count(false, metrics);
+        image = new HEXFile(flashSize, pageSize, (byte) 0xff, listener);
+        image.readFile(new ByteArrayInputStream(content));
+        File file = file(key, IMAGE_SUFFIX);
+        if (file != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            image.write(out);
+            save(file, out.toByteArray());
+        }
+        return store(key, image);
+    }
+
+    /**
+     * Описание микроконтроллера по содержимому фаила XML AVR Studio.
+     * @param content  содержимое фаила XML.
+     * @param listener слушатель для вывода сообщений.
+     * @param metrics  замеры программатора для попаданий в кэш, может быть null.
+     * @return Описание микроконтроллера.
+     * @throws Exception Ошибка в фаиле описания.
+     */
+    AVRDevice getDevice(byte[] content, BootloaderListener listener, MetricsRecorder metrics) throws Exception {
+        String key = hash(content);
+        AVRDevice device = (AVRDevice) lookup(key);
+        if (device == null) {
+            File file = file(key, DEVICE_SUFFIX);
+            if (file != null && file.isFile()) {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    for (AVRDevice cached : DeviceCatalog.read(in).getDevices()) {
+                        device = cached; // One device per file.
+                    }
+                } catch (IOException e) {
+                    device = null; // Damaged cache file, parse again.
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        if (device != null) {
+            count(true, metrics);
+            return store(key, device);
+        }
+
+        count(false, metrics);
+        device = new AVRDevice(new ByteArrayInputStream(content), listener);
+        File file = file(key, DEVICE_SUFFIX);
+        if (file != null) {
+            DeviceCatalog catalog = new DeviceCatalog();
+            catalog.add(device);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            catalog.write(out);
+            save(file, out.toByteArray());
+        }
+        return store(key, device);
+    }
+
+    /**
+     * Сколько раз запись найдена в памяти или на диске, без разбора.
+     * @return Количество попаданий.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Сколько раз фаил пришлось разбирать.
+     * @return Количество промахов.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Сколько байт занимают записи в памяти, оценка.
+     * @return Размер записей.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Очистить кэш в памяти, фаилы на диске остаются.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        bytes = 0;
+    }
+
+    private synchronized Object lookup(String key) {
+        return memory.get(key);
+    }
+
+    /* Oldest entries are evicted until size fits, too large entry is not kept */
+    private synchronized <T> T store(String key, T value) {
+        Object old = memory.put(key, value);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(value);
+        Iterator<Object> eldest = memory.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+        return value;
+    }
+
+    private static long sizeOf(Object value) {
+        return value instanceof HEXFile ? ((HEXFile) value).getMemorySize() : DEVICE_BYTES;
+    }
+
+    private synchronized void count(boolean hit, MetricsRecorder metrics) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+        if (metrics != null) {
+            metrics.cacheLookup(hit);
+        }
+    }
+
+    private File file(String key, String suffix) {
+        return directory == null ? null : new File(directory, key + suffix);
+    }
+
+    /* Write to temporary file first, readers never see half written file */
+    private static void save(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete(); // Other thread saved same entry.
+        }
+    }
+
+    private static String hash(byte[] content) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+        StringBuilder text = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            text.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Прочитать поток целиком для хэша и разбора.
+     * @param inputStream поток фаила, закрывается.
+     * @return Содержимое.
+     * @throws IOException Ошибка чтения.
+     */
+    static byte[] readAll(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
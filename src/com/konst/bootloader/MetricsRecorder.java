@@ -0,0 +1,160 @@
+package com.konst.bootloader;
+
+import java.util.Arrays;
+
+/**
+ * Накопление замеров программатора.
+ * Обновляется в потоке программирования, снимок можно брать из другого потока.
+ */
+class MetricsRecorder {
+    private final long[] phaseNanos = new long[BootloaderMetrics.Phase.values().length];
+    private long bytesSent;
+    private long bytesReceived;
+    private final int[] commandCounts = new int[256];
+    private final long[] latencyHistogram = new long[BootloaderMetrics.LATENCY_BUCKETS];
+    private long latencyCount;
+    private long latencyTotalNanos;
+    private long latencyMaxNanos;
+    private long sentNanos;                                                 // End of last send, 0 if reply already received.
+    private int command;                                                    // Code of command being sent.
+    private int commandBytes;                                               // Bytes of current command still to send.
+    private int headerBytes;                                                // Parameter bytes of 'B' or 'Z' seen.
+    private int blockSize;                                                  // Data size of 'B' or 'Z' being assembled.
+    private final byte[] single = new byte[1];
+    private int cacheHits;
+    private int cacheMisses;
+    private int retries;
+    private int timeouts;
+
+    synchronized void addPhase(BootloaderMetrics.Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Байты посланы загрузчику. Команды считаются по кодам, параметры и данные команд пропускаются.
+     * @param buffer посланные байты.
+     * @param offset смещение в буфере.
+     * @param length количество байт.
+     */
+    synchronized void sent(byte[] buffer, int offset, int length) {
+        bytesSent += length;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (commandBytes == 0) {
+                command = buffer[i++] & 0xff; // Next command code.
+                commandCounts[command]++;
+                commandBytes = parameterSize(command);
+                headerBytes = 0;
+            } else if ((command == 'B' || command == 'Z') && headerBytes < parameterSize(command)) {
+                int sizeAt = command == 'B' ? 0 : 3; // Data size, MSB first: block size or compressed size.
+                if (headerBytes == sizeAt || headerBytes == sizeAt + 1) {
+                    blockSize = blockSize << 8 | buffer[i] & 0xff;
+                }
+                i++;
+                commandBytes--;
+                if (++headerBytes == parameterSize(command)) {
+                    commandBytes += blockSize; // Data follows parameters.
+                    blockSize = 0;
+                }
+            } else {
+                int skip = Math.min(commandBytes, end - i); // Parameters or block data.
+                commandBytes -= skip;
+                i += skip;
+            }
+        }
+        sentNanos = System.nanoTime();
+    }
+
+    synchronized void sent(byte value) {
+        single[0] = value;
+        sent(single, 0, 1);
+    }
+
+    /**
+     * Байты приняты от загрузчика. Первый прием после посылки дает задержку ответа.
+     * @param length количество байт.
+     */
+    synchronized void received(int length) {
+        bytesReceived += length;
+        if (sentNanos == 0) {
+            return;
+        }
+        long latency = System.nanoTime() - sentNanos;
+        sentNanos = 0;
+        latencyCount++;
+        latencyTotalNanos += latency;
+        latencyMaxNanos = Math.max(latencyMaxNanos, latency);
+        int bucket = 64 - Long.numberOfLeadingZeros(latency / 1000); // Upper limit 2^bucket microseconds.
+        latencyHistogram[Math.min(bucket, latencyHistogram.length - 1)]++;
+    }
+
+    /**
+     * Поиск в кэше прошивок.
+     * @param hit true - найдено без разбора.
+     */
+    synchronized void cacheLookup(boolean hit) {
+        if (hit) {
+            cacheHits++;
+        } else {
+            cacheMisses++;
+        }
+    }
+
+    /**
+     * Блок или команда повторены после ошибки ответа.
+     */
+    synchronized void retry() {
+        retries++;
+    }
+
+    /**
+     * Ответ не пришел за время ожидания.
+     */
+    synchronized void timeout() {
+        timeouts++;
+        sentNanos = 0; // No reply, no latency.
+    }
+
+    synchronized BootloaderMetrics snapshot() {
+        return new BootloaderMetrics(phaseNanos.clone(), bytesSent, bytesReceived, commandCounts.clone(),
+                latencyHistogram.clone(), latencyCount, latencyTotalNanos, latencyMaxNanos, cacheHits, cacheMisses,
+                retries, timeouts);
+    }
+
+    synchronized void reset() {
+        Arrays.fill(phaseNanos, 0);
+        Arrays.fill(commandCounts, 0);
+        Arrays.fill(latencyHistogram, 0);
+        bytesSent = bytesReceived = 0;
+        latencyCount = latencyTotalNanos = latencyMaxNanos = 0;
+        cacheHits = cacheMisses = 0;
+        retries = timeouts = 0;
+        sentNanos = 0;
+        commandBytes = headerBytes = blockSize = 0;
+    }
+
+    /**
+     * Сколько байт параметров идет за кодом команды AVR109.
+     * Для 'B' это размер и тип памяти, для 'Z' еще размер сжатых данных, данные добавляются по размеру.
+     */
+    private static int parameterSize(int code) {
+        switch (code) {
+            case 'Z':
+                return 5;
+            case 'H':
+            case 'B':
+            case 'g':
+                return 3;
+            case 'A':
+                return 2;
+            case 'c':
+            case 'C':
+            case 'D':
+            case 'T':
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
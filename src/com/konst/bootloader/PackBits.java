@@ -0,0 +1,104 @@
+package com.konst.bootloader;
+
+/**
+ * Сжатие блоков записи Flash методом PackBits для команды 'Z'.
+ * Управляющий байт n от 0 до 127 - дальше n + 1 байт без сжатия,
+ * от -127 до -1 - следующий байт повторяется 1 - n раз, -128 не используется.
+ * Декодер помещается в загрузчик на несколько десятков команд AVR,
+ * а заполнение 0xff и повторяющиеся таблицы прошивки сжимаются в несколько раз.
+ */
+final class PackBits {
+    static final int FORMAT = 1;                                            // Format code in 'z' reply.
+    private static final int MAX_RUN = 128;                                 // Longest run or literal.
+    private static final int MIN_RUN = 3;                                   // Shorter runs stay in literal.
+
+    private PackBits() {
+    }
+
+    /**
+     * Сжать данные.
+     * @param source   исходные данные.
+     * @param offset   смещение в исходных данных.
+     * @param length   количество байт.
+     * @param target   буфер сжатых данных.
+     * @param position смещение в буфере.
+     * @param limit    наибольший размер сжатых данных.
+     * @return Размер сжатых данных или -1, если они не меньше limit.
+     */
+    static int encode(byte[] source, int offset, int length, byte[] target, int position, int limit) {
+        int end = offset + length;
+        int out = 0;
+        int i = offset;
+        while (i < end) {
+            int run = runLength(source, i, end);
+            if (run >= MIN_RUN) {
+                if (out + 2 >= limit) {
+                    return -1;
+                }
+                target[position + out++] = (byte) (1 - run);
+                target[position + out++] = source[i];
+                i += run;
+                continue;
+            }
+
+		    /* Literal up to next run worth encoding */
+            int literal = run;
+            while (i + literal < end && literal < MAX_RUN && runLength(source, i + literal, end) < MIN_RUN) {
+                literal++;
+            }
+            literal = Math.min(literal, MAX_RUN);
+            if (out + 1 + literal >= limit) {
+                return -1;
+            }
+            target[position + out++] = (byte) (literal - 1);
+            System.arraycopy(source, i, target, position + out, literal);
+            out += literal;
+            i += literal;
+        }
+        return out;
+    }
+
+    private static int runLength(byte[] source, int i, int end) {
+        int run = 1;
+        while (i + run < end && run < MAX_RUN && source[i + run] == source[i]) {
+            run++;
+        }
+        return run;
+    }
+
+    /**
+     * Распаковать данные, как загрузчик.
+     * @param source   сжатые данные.
+     * @param offset   смещение в сжатых данных.
+     * @param length   размер сжатых данных.
+     * @param target   буфер для данных.
+     * @param position смещение в буфере.
+     * @param limit    наибольший размер данных.
+     * @return Размер данных или -1, если сжатые данные испорчены или не помещаются в limit.
+     */
+    static int decode(byte[] source, int offset, int length, byte[] target, int position, int limit) {
+        int end = offset + length;
+        int out = 0;
+        int i = offset;
+        while (i < end) {
+            int n = source[i++];
+            if (n >= 0) {
+                if (i + n + 1 > end || out + n + 1 > limit) {
+                    return -1;
+                }
+                System.arraycopy(source, i, target, position + out, n + 1);
+                i += n + 1;
+                out += n + 1;
+            } else if (n != -128) {
+                if (i == end || out + 1 - n > limit) {
+                    return -1;
+                }
+                byte value = source[i++];
+                for (int k = 0; k < 1 - n; k++) {
+                    target[position + out++] = value;
+                }
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,238 @@
+package com.konst.bootloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Журнал записанных страниц Flash для продолжения прерванного программирования.
+ * Страница отмечается, когда загрузчик ответил CR на блок с ее последним байтом.
+ * Ключ записи - сигнатура микроконтроллера и хэш прошивки, поэтому после переподключения
+ * продолжается только та же прошивка на том же типе микроконтроллера.
+ * Один журнал на одно устройство, журналы разных устройств в одной папке различаются именем.
+ * На диске журнал - ключ записи и битовая карта страниц, фаил сохраняется через каждые {@link #SAVE_PAGES} страниц.
+ * Фаил с другим ключом остался от другой прошивки и удаляется, Flash устройства после него неизвестна.
+ */
+public class ProgramJournal {
+    static final int SAVE_PAGES = 16;                                       // Confirmed pages between saves.
+    private static final int MAGIC = 0x41564a4e;                            // "AVJN".
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".jnl";
+    private final String name;
+    private final File directory;                                           // null - memory only.
+    private String key;                                                     // Device and firmware, null if not begun.
+    private int pageSize;
+    private byte[] pages = new byte[0];                                     // Bit per confirmed page.
+    private int confirmed;
+    private int unsaved;                                                    // Pages confirmed after last save.
+
+    /**
+     * Журнал только в памяти, для переподключения без перезапуска программы.
+     * @param _name имя устройства, например адрес Bluetooth.
+     */
+    public ProgramJournal(String _name) {
+        this(_name, null);
+    }
+
+    /**
+     * Журнал в памяти и на диске.
+     * @param _name      имя устройства, например адрес Bluetooth.
+     * @param _directory папка для фаилов журнала, null - только в памяти.
+     */
+    public ProgramJournal(String _name, File _directory) {
+        name = _name;
+        directory = _directory;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create journal directory " + directory + '!');
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Сколько страниц отмечено записанными.
+     * @return Количество страниц.
+     */
+    public synchronized int getConfirmedPages() {
+        return confirmed;
+    }
+
+    /**
+     * Ключ записи журнала.
+     * @param image      используемый диапазон прошивки.
+     * @param signature0 сигнатура 0.
+     * @param signature1 сигнатура 1.
+     * @param signature2 сигнатура 2.
+     * @return Сигнатура и хэш SHA-256 диапазона и данных прошивки.
+     * @throws Exception Ошибка чтения прошивки.
+     */
+    static String key(HEXFile image, long signature0, long signature1, long signature2) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        int start = image.getRangeStart();
+        int end = image.getRangeEnd();
+        byte[] chunk = new byte[image.getPageSize()];
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            digest.update((byte) (start >> shift));
+            digest.update((byte) (end >> shift));
+        }
+        for (int address = start; address <= end; address += chunk.length) {
+            int count = Math.min(chunk.length, end - address + 1);
+            image.copyData(address, chunk, 0, count);
+            digest.update(chunk, 0, count);
+        }
+
+        StringBuilder text = new StringBuilder(72);
+        text.append(hex(signature0)).append(hex(signature1)).append(hex(signature2)).append('-');
+        for (byte b : digest.digest()) {
+            text.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return text.toString();
+    }
+
+    private static String hex(long value) {
+        return String.valueOf(Character.forDigit((int) (value >> 4 & 0xf), 16)) + Character.forDigit((int) (value & 0xf), 16);
+    }
+
+    /**
+     * Начать запись журнала для устройства и прошивки.
+     * Для того же ключа отметки остаются, для другого загружаются из фаила или начинаются заново.
+     * @param _key      ключ записи, см. {@link #key(HEXFile, long, long, long)}.
+     * @param _pageSize размер страницы Flash.
+     * @param pageCount количество страниц Flash.
+     */
+    synchronized void begin(String _key, int _pageSize, int pageCount) {
+        if (_key.equals(key) && pageSize == _pageSize && pages.length == (pageCount + 7) / 8) {
+            return; // Same programming continues.
+        }
+        key = _key;
+        pageSize = _pageSize;
+        pages = new byte[(pageCount + 7) / 8];
+        confirmed = 0;
+        unsaved = 0;
+        load();
+    }
+
+    /**
+     * Записана ли страница.
+     * @param address адрес в странице.
+     * @return true - загрузчик подтвердил запись страницы.
+     */
+    synchronized boolean isConfirmed(int address) {
+        int page = address / pageSize;
+        return key != null && (pages[page >> 3] & 1 << (page & 7)) != 0;
+    }
+
+    /**
+     * Загрузчик подтвердил блок. Отмечаются страницы, последний байт которых в блоке.
+     * @param address   адрес первого байта блока.
+     * @param byteCount размер блока в байтах.
+     * @throws IOException Ошибка сохранения фаила.
+     */
+    synchronized void confirm(int address, int byteCount) throws IOException {
+        if (key == null) {
+            return;
+        }
+        for (int page = address / pageSize; page < (address + byteCount) / pageSize; page++) {
+            if ((pages[page >> 3] & 1 << (page & 7)) == 0) {
+                pages[page >> 3] |= 1 << (page & 7);
+                confirmed++;
+                unsaved++;
+            }
+        }
+        if (unsaved >= SAVE_PAGES) {
+            save();
+        }
+    }
+
+    /**
+     * Забыть отметки, например после стирания микросхемы или проверки.
+     */
+    synchronized void reset() {
+        if (key == null) {
+            return;
+        }
+        pages = new byte[pages.length];
+        confirmed = 0;
+        unsaved = 0;
+        File file = file();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Сохранить отметки в фаил, если есть новые.
+     * @throws IOException Ошибка записи фаила.
+     */
+    synchronized void save() throws IOException {
+        File file = file();
+        if (file == null || unsaved == 0) {
+            unsaved = 0;
+            return;
+        }
+
+	    /* Write to temporary file first, journal is never half written */
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(pageSize);
+            out.writeInt(pages.length);
+            out.write(pages);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Cannot save journal " + file + '!');
+        }
+        unsaved = 0;
+    }
+
+    private void load() {
+        File file = file();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        boolean loaded = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION && key.equals(in.readUTF())
+                        && in.readInt() == pageSize && in.readInt() == pages.length) {
+                    byte[] bits = new byte[pages.length];
+                    in.readFully(bits);
+                    pages = bits;
+                    loaded = true;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            loaded = false; // Damaged journal.
+        }
+        if (!loaded) {
+            file.delete(); // Other firmware or format, start again.
+            return;
+        }
+        for (byte bits : pages) {
+            confirmed += Integer.bitCount(bits & 0xff);
+        }
+    }
+
+    private File file() {
+        if (directory == null || key == null) {
+            return null;
+        }
+        return new File(directory, name.replaceAll("[^A-Za-z0-9]", "_") + SUFFIX); // One file per device.
+    }
+}
@@ -0,0 +1,112 @@
+package com.konst.bootloader;
+
+/**
+ * Прогресс этапа программирования для слушателя.
+ * Обновления объединяются: слушатель получает новое значение только если прогресс
+ * прошел заданную долю диапазона или прошло заданное время с прошлого обновления.
+ * Каждый этап дает одинаковую последовательность: открытие диалога, обновления,
+ * последнее обновление до конца диапазона и закрытие диалога.
+ */
+class ProgressReporter {
+    static final int DEFAULT_PERCENT = 1;
+    static final long DEFAULT_INTERVAL_MILLIS = 50;
+
+    private final BootloaderListener listener;
+    private final int percent;                                              // Minimum step, percent of range.
+    private final long intervalNanos;                                       // Report after this time even if step is small.
+    private int end;                                                        // Last value of phase.
+    private int step;                                                       // Minimum step in values.
+    private int reported;                                                   // Last value sent to listener.
+    private long reportedNanos;                                             // Time of last report.
+    private boolean started;
+    private int updates;                                                    // Updates sent in current phase.
+
+    ProgressReporter(BootloaderListener _listener) {
+        this(_listener, DEFAULT_PERCENT, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param _listener      слушатель событий.
+     * @param _percent       минимальный шаг обновления в процентах диапазона.
+     * @param intervalMillis обновлять не реже, мс, если прогресс изменился.
+     */
+    ProgressReporter(BootloaderListener _listener, int _percent, long intervalMillis) {
+        listener = _listener;
+        percent = _percent;
+        intervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * Начало этапа.
+     * @param title заголовок диалога.
+     * @param start первое значение прогресса, обычно начальный адрес.
+     * @param _end  последнее значение прогресса, обычно конечный адрес.
+     */
+    void start(String title, int start, int _end) {
+        close(); // Previous phase may be left open.
+        started = true;
+        end = _end;
+        step = Math.max(1, (int) ((long) (_end - start) * percent / 100));
+        reported = start;
+        reportedNanos = System.nanoTime();
+        updates = 0;
+        listener.onShowDialog(_end, title);
+    }
+
+    /**
+     * Прогресс дошел до значения. Слушатель получает его, если шаг или время достаточны.
+     * @param value текущее значение прогресса.
+     */
+    void step(int value) {
+        value = Math.min(value, end); // Last block may pass range end.
+        if (!started || value == reported) {
+            return;
+        }
+        if (value - reported < step && value < end) {
+            long now = System.nanoTime();
+            if (now - reportedNanos < intervalNanos) {
+                return; // Coalesced.
+            }
+            report(value, now);
+            return;
+        }
+        report(value, System.nanoTime());
+    }
+
+    /**
+     * Конец этапа: последнее значение и закрытие диалога.
+     */
+    void end() {
+        if (started && reported != end) {
+            report(end, System.nanoTime());
+        }
+        close();
+    }
+
+    /**
+     * Закрыть диалог без последнего значения, если этап не закончен.
+     * Вызывается при ошибке, чтобы диалог не остался открытым.
+     */
+    void close() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        listener.onCloseDialog();
+    }
+
+    /**
+     * Сколько обновлений получил слушатель в последнем этапе.
+     * @return Количество обновлений.
+     */
+    int getUpdates() {
+        return updates;
+    }
+
+    private void report(int value, long now) {
+        reported = value;
+        reportedNanos = now;
+        updates++;
+        listener.onUpdateDialog(value);
+    }
+}
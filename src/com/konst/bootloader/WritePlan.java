@@ -0,0 +1,88 @@
+package com.konst.bootloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * План записи Flash по страницам.
+ * Страницы целиком из 0xff после стирания не пишутся,
+ * соседние непустые страницы объединяются в одну область.
+ * Страницы, уже записанные по журналу прерванного программирования, тоже пропускаются.
+ */
+class WritePlan {
+    private final List<Region> regions = new ArrayList<>();
+    private int pageCount;                                                  // Non-blank pages to write.
+
+    /* Constructor */
+    WritePlan(HEXFile data, int pageSize) throws Exception {
+        this(data, pageSize, null);
+    }
+
+    /**
+     * План записи с пропуском уже записанных страниц.
+     * @param data     данные прошивки.
+     * @param pageSize размер страницы Flash.
+     * @param journal  журнал записанных страниц, null - писать все непустые страницы.
+     * @throws Exception Размер страницы не задан.
+     */
+    WritePlan(HEXFile data, int pageSize, ProgramJournal journal) throws Exception {
+        if (pageSize <= 0) {
+            throw new Exception("Cannot plan Flash write without page size!");
+        }
+
+        int start = data.getRangeStart() - data.getRangeStart() % pageSize; // First page inside range.
+        int end = data.getRangeEnd();
+
+        Region region = null;
+        for (int page = start; page <= end; page += pageSize) {
+            if (data.isFilled(page, Math.min(page + pageSize - 1, end), (byte) 0xff) || journal != null && journal.isConfirmed(page)) {
+                region = null; // Gap, next page starts new region.
+                continue;
+            }
+
+            pageCount++;
+            if (region == null) {
+                region = new Region(page);
+                regions.add(region);
+            }
+            region.end = page + pageSize - 1;
+        }
+    }
+
+    /**
+     * Области для записи в порядке возрастания адресов.
+     * @return Список областей.
+     */
+    List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * Количество непустых страниц.
+     * @return Страниц для записи.
+     */
+    int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Непрерывная область из целых страниц.
+     */
+    static class Region {
+        private final int start;
+        private int end;                                                    // Inclusive.
+
+        Region(int start) {
+            this.start = start;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+    }
+}
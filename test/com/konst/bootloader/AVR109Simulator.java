@@ -0,0 +1,507 @@
+package com.konst.bootloader;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Программатор с имитацией загрузчика AVR109 вместо канала связи.
+ * Flash и EEPROM хранятся в памяти, команды обрабатываются как в загрузчике,
+ * время передачи по каналу считается по скорости и задержке канала.
+ * Используется в тестах и замерах программатора без микроконтроллера.
+ */
+public class AVR109Simulator extends AVRProgrammer {
+    private final byte[] flash;
+    private final byte[] eeprom;
+    private final byte[] pageBuffer;                                        // Temporary page buffer filled by 'c'/'C'/'B'.
+    private final int pageSize;
+    private final int blockSize;                                            // 0 - no block mode.
+    private final byte[] command = new byte[6 + 0x10000];                   // Command being received.
+    private final byte[] unpacked;                                          // Decompressed 'Z' block.
+    private int commandLength;
+    private byte[] response = new byte[256];                                // Replies not read yet.
+    private int responseHead;
+    private int responseTail;
+    private final int[] commandCounts = new int[256];                       // Commands received by code.
+    private int address;                                                    // Word address for Flash, byte address for EEPROM.
+    private boolean autoincrement = true;
+    private boolean eraseOnBlockWrite;                                      // Erase page before block write.
+    private boolean compression;                                            // Bootloader accepts 'Z' blocks.
+    private boolean exited;
+    private String programmerId = "AVRBOOT";
+    private int signature0 = 0x1e;
+    private int signature1 = 0x95;
+    private int signature2 = 0x0f;
+    private int baudRate;                                                   // 0 - infinitely fast link.
+    private long latencyNanos;                                              // Delay of each turnaround.
+    private boolean realTime;                                               // Sleep for link time.
+    private boolean sending;                                                // Last transfer was from host.
+    private long linkNanos;                                                 // Simulated link time.
+    private long eepromWriteNanos;                                          // Time to program one EEPROM byte.
+    private long bytesSent;
+    private long bytesReceived;
+    private Random faults;
+    private double faultRate;
+    private byte lossCommand;                                               // Command losing one byte, 0 - none.
+    private int lossPosition;                                               // Position of lost byte in command.
+
+    /**
+     * Конструктор имитатора.
+     * @param _listener  слушатель для вывода сообщений.
+     * @param flashSize  размер Flash в байтах.
+     * @param eepromSize размер EEPROM в байтах.
+     * @param _pageSize  размер страницы Flash в байтах.
+     * @param _blockSize размер блока загрузчика в байтах, 0 - без блочного режима.
+     */
+    public AVR109Simulator(BootloaderListener _listener, int flashSize, int eepromSize, int _pageSize, int _blockSize) {
+        super(_listener);
+        flash = new byte[flashSize];
+        eeprom = new byte[eepromSize];
+        pageSize = _pageSize;
+        blockSize = _blockSize;
+        pageBuffer = new byte[pageSize];
+        unpacked = new byte[blockSize];
+        Arrays.fill(flash, (byte) 0xff);
+        Arrays.fill(eeprom, (byte) 0xff);
+        Arrays.fill(pageBuffer, (byte) 0xff);
+    }
+
+    /**
+     * Параметры канала связи.
+     * Каждый байт занимает 10 бит, каждая смена направления передачи добавляет задержку.
+     * @param _baudRate     скорость в бодах, 0 - без ограничения.
+     * @param latencyMicros задержка ответа в микросекундах.
+     * @param _realTime     true - реально ждать время передачи, false - только считать.
+     */
+    public void setLink(int _baudRate, int latencyMicros, boolean _realTime) {
+        baudRate = _baudRate;
+        latencyNanos = latencyMicros * 1000L;
+        realTime = _realTime;
+    }
+
+    /**
+     * Включить потерю байтов ответов загрузчика.
+     * С заданной вероятностью байт ответа теряется. Искаженные данные при чтении
+     * программатор не отличит от настоящего несовпадения, поэтому они не вносятся.
+     * @param rate вероятность ошибки на байт ответа.
+     * @param seed начальное значение генератора для повторяемости.
+     */
+    public void setFaults(double rate, long seed) {
+        faultRate = rate;
+        faults = rate > 0 ? new Random(seed) : null;
+    }
+
+    /**
+     * Потерять один байт следующей команды с заданным кодом, загрузчик ждет недостающий байт.
+     * @param code     код команды.
+     * @param position номер байта в команде, начиная с 1 после кода.
+     */
+    public void loseCommandByte(char code, int position) {
+        lossCommand = (byte) code;
+        lossPosition = position;
+    }
+
+    /**
+     * Время записи байта EEPROM, загрузчик отвечает CR после записи всех байт команды.
+     * @param micros время записи одного байта в микросекундах, у AVR около 3400.
+     */
+    public void setEEPROMWriteTime(int micros) {
+        eepromWriteNanos = micros * 1000L;
+    }
+
+    public void setAutoincrement(boolean _autoincrement) {
+        autoincrement = _autoincrement;
+    }
+
+    /**
+     * Стирать страницу перед записью блока, как загрузчики для дифференциального программирования.
+     * @param erase true - стирать страницу.
+     */
+    public void setEraseOnBlockWrite(boolean erase) {
+        eraseOnBlockWrite = erase;
+    }
+
+    /**
+     * Принимать сжатые блоки 'Z' в формате {@link PackBits}, как загрузчик с расширением сжатия.
+     * @param enable true - отвечать на 'z' и принимать 'Z'.
+     */
+    public void setCompressionSupported(boolean enable) {
+        compression = enable;
+    }
+
+    public void setSignature(int sig0, int sig1, int sig2) {
+        signature0 = sig0;
+        signature1 = sig1;
+        signature2 = sig2;
+    }
+
+    public void setProgrammerId(String id) {
+        programmerId = id;
+    }
+
+    @Override
+    public void sendByte(byte b) {
+        transfer(true, 1);
+        receive(b);
+    }
+
+    @Override
+    public void sendBytes(byte[] buffer, int offset, int length) {
+        transfer(true, length);
+        for (int i = offset; i < offset + length; i++) {
+            receive(buffer[i]);
+        }
+    }
+
+    @Override
+    public int getByte() {
+        if (responseHead == responseTail) {
+            return -1; // Nothing to read, timeout on real link.
+        }
+        transfer(false, 1);
+        return response[responseHead++] & 0xff;
+    }
+
+    @Override
+    public int getByte(int timeoutMillis) {
+        int b = getByte();
+        if (b == -1) {
+            elapse(timeoutMillis * 1000000L); // Waited for reply in vain.
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length, int timeoutMillis) {
+        int count = Math.min(length, responseTail - responseHead);
+        readFully(buffer, offset, count);
+        if (count < length) {
+            elapse(timeoutMillis * 1000000L);
+        }
+        return count;
+    }
+
+    @Override
+    public void readFully(byte[] buffer, int offset, int length) {
+        transfer(false, Math.min(length, responseTail - responseHead));
+        for (int i = offset; i < offset + length; i++) {
+            buffer[i] = responseHead == responseTail ? (byte) -1 : response[responseHead++];
+        }
+    }
+
+    private void transfer(boolean fromHost, int count) {
+        long nanos = 0;
+        if (sending != fromHost) {
+            nanos += latencyNanos; // Direction changed, pay turnaround.
+            sending = fromHost;
+        }
+        if (baudRate > 0) {
+            nanos += count * 10L * 1000000000L / baudRate; // Start, 8 data and stop bits.
+        }
+        if (fromHost) {
+            bytesSent += count;
+        } else {
+            bytesReceived += count;
+        }
+        elapse(nanos);
+    }
+
+    private void elapse(long nanos) {
+        linkNanos += nanos;
+        if (realTime && nanos > 0) {
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Bootloader side */
+    private void receive(byte b) {
+        if (lossCommand != 0 && commandLength == lossPosition && command[0] == lossCommand) {
+            lossCommand = 0;
+            return; // Byte lost on link.
+        }
+        command[commandLength++] = b;
+        if (commandLength < commandSize()) {
+            return; // Wait for rest of command.
+        }
+        commandLength = 0;
+        execute();
+    }
+
+    private int commandSize() {
+        switch (command[0]) {
+            case 'A':
+                return 3;
+            case 'H':
+            case 'g':
+                return 4;
+            case 'c':
+            case 'C':
+            case 'D':
+            case 'T':
+                return 2;
+            case 'B':
+                return commandLength < 4 ? 4 : 4 + ((command[1] & 0xff) << 8 | command[2] & 0xff);
+            case 'Z':
+                if (commandLength < 6) {
+                    return 6;
+                }
+                int packed = (command[4] & 0xff) << 8 | command[5] & 0xff;
+                return packed > blockSize ? 6 : 6 + packed; // Broken size is refused without data.
+            default:
+                return 1;
+        }
+    }
+
+    private void execute() {
+        int code = command[0] & 0xff;
+        commandCounts[code]++;
+        switch (code) {
+            case 'S':
+                for (int i = 0; i < programmerId.length(); i++) {
+                    reply(programmerId.charAt(i));
+                }
+                break;
+            case 's':
+                reply(signature2);
+                reply(signature1);
+                reply(signature0);
+                break;
+            case 't':
+                reply(0x44); // One supported device code.
+                reply(0);
+                break;
+            case 'a':
+                reply(autoincrement ? 'Y' : 'N');
+                break;
+            case 'b':
+                if (blockSize > 0) {
+                    reply('Y');
+                    reply(blockSize >> 8);
+                    reply(blockSize);
+                } else {
+                    reply('N');
+                }
+                break;
+            case 'p':
+                reply('S'); // Serial programmer.
+                break;
+            case 'A':
+                address = (command[1] & 0xff) << 8 | command[2] & 0xff;
+                reply('\r');
+                break;
+            case 'H':
+                address = (command[1] & 0xff) << 16 | (command[2] & 0xff) << 8 | command[3] & 0xff;
+                reply('\r');
+                break;
+            case 'c':
+                pageBuffer[(address << 1) % pageSize] = command[1];
+                reply('\r');
+                break;
+            case 'C':
+                pageBuffer[((address << 1) + 1) % pageSize] = command[1];
+                if (autoincrement) {
+                    address++;
+                }
+                reply('\r');
+                break;
+            case 'm':
+                writePage(address << 1);
+                reply('\r');
+                break;
+            case 'R':
+                reply(flash[(address << 1) + 1]);
+                reply(flash[address << 1]);
+                if (autoincrement) {
+                    address++;
+                }
+                break;
+            case 'D':
+                eeprom[address] = command[1];
+                address++;
+                elapse(eepromWriteNanos);
+                reply('\r');
+                break;
+            case 'd':
+                reply(eeprom[address]);
+                address++;
+                break;
+            case 'B':
+                blockLoad();
+                break;
+            case 'z':
+                if (compression && blockSize > 0) {
+                    reply('Y');
+                    reply(PackBits.FORMAT);
+                } else {
+                    reply('?');
+                }
+                break;
+            case 'Z':
+                packedLoad();
+                break;
+            case 'g':
+                blockRead();
+                break;
+            case 'e':
+                Arrays.fill(flash, (byte) 0xff);
+                reply('\r');
+                break;
+            case 'E':
+                exited = true;
+                reply('\r');
+                break;
+            case 'P':
+            case 'L':
+            case 'T':
+                reply('\r');
+                break;
+            case 0x1b:
+                break; // Escape is ignored.
+            default:
+                reply('?');
+        }
+    }
+
+    private void blockLoad() {
+        int size = (command[1] & 0xff) << 8 | command[2] & 0xff;
+        if (command[3] == 'E') {
+            if (size > blockSize || address + size > eeprom.length) {
+                reply('?');
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                eeprom[address++] = command[4 + i];
+            }
+            elapse(size * eepromWriteNanos);
+            reply('\r');
+            return;
+        }
+        if (command[3] != 'F' || size > blockSize) {
+            reply('?');
+            return;
+        }
+        loadFlash(command, 4, size);
+        reply('\r');
+    }
+
+    private void packedLoad() {
+        int size = (command[1] & 0xff) << 8 | command[2] & 0xff;
+        int packed = (command[4] & 0xff) << 8 | command[5] & 0xff;
+        if (!compression || command[3] != 'F' || size > blockSize || packed > blockSize
+                || PackBits.decode(command, 6, packed, unpacked, 0, blockSize) != size) {
+            reply('?');
+            return;
+        }
+        loadFlash(unpacked, 0, size);
+        reply('\r');
+    }
+
+    /* Fill page buffer from block data, write page when it is full or block ends */
+    private void loadFlash(byte[] data, int offset, int size) {
+        int byteAddress = address << 1;
+        for (int i = 0; i < size; i++) {
+            pageBuffer[(byteAddress + i) % pageSize] = data[offset + i];
+            if ((byteAddress + i + 1) % pageSize == 0 || i == size - 1) {// Page filled or end of block.
+                if (eraseOnBlockWrite) {
+                    int page = (byteAddress + i) - (byteAddress + i) % pageSize;
+                    Arrays.fill(flash, page, page + pageSize, (byte) 0xff);
+                }
+                writePage(byteAddress + i);
+            }
+        }
+        address += size >> 1;
+    }
+
+    private void blockRead() {
+        int size = (command[1] & 0xff) << 8 | command[2] & 0xff;
+        if (command[3] != 'F' && command[3] != 'E' || size > blockSize) {
+            reply('?');
+            return;
+        }
+        if (command[3] == 'E') {
+            for (int i = 0; i < size; i++) {
+                reply(eeprom[address++]);
+            }
+            return;
+        }
+        int byteAddress = address << 1;
+        for (int i = 0; i < size; i++) {
+            reply(flash[byteAddress + i]);
+        }
+        address += size >> 1;
+    }
+
+    private void writePage(int byteAddress) {
+        int page = byteAddress - byteAddress % pageSize;
+        for (int i = 0; i < pageSize; i++) {
+            flash[page + i] &= pageBuffer[i]; // Programming only clears bits.
+        }
+        Arrays.fill(pageBuffer, (byte) 0xff);
+    }
+
+    private void reply(int value) {
+        if (faults != null && faults.nextDouble() < faultRate) {
+            return; // Byte lost.
+        }
+        if (responseTail == response.length) {
+            if (responseHead > 0) {
+                System.arraycopy(response, responseHead, response, 0, responseTail - responseHead);
+                responseTail -= responseHead;
+                responseHead = 0;
+            }
+            if (responseTail == response.length) {
+                response = Arrays.copyOf(response, response.length * 2);
+            }
+        }
+        response[responseTail++] = (byte) value;
+    }
+
+    /* Inspection */
+    public byte getFlash(int byteAddress) {
+        return flash[byteAddress];
+    }
+
+    public void setFlash(int byteAddress, byte... data) {
+        System.arraycopy(data, 0, flash, byteAddress, data.length);
+    }
+
+    public byte getEEPROM(int byteAddress) {
+        return eeprom[byteAddress];
+    }
+
+    public void setEEPROM(int byteAddress, byte... data) {
+        System.arraycopy(data, 0, eeprom, byteAddress, data.length);
+    }
+
+    /**
+     * Сколько раз загрузчик получил команду.
+     * @param code код команды.
+     * @return Количество команд.
+     */
+    public int getCommandCount(char code) {
+        return commandCounts[code & 0xff];
+    }
+
+    /**
+     * Время передачи по имитируемому каналу вместе с ожиданием записи EEPROM.
+     * @return Наносекунды.
+     */
+    public long getLinkNanos() {
+        return linkNanos;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public boolean isExited() {
+        return exited;
+    }
+}
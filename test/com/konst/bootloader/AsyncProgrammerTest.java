@@ -0,0 +1,158 @@
+package com.konst.bootloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncProgrammerTest extends SimulatorTest {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Имитатор, который на заданном блоке записи ждет запроса отмены.
+     */
+    private static class PausingSimulator extends AVR109Simulator {
+        private final int pauseBlock;
+        final CountDownLatch paused = new CountDownLatch(1);
+        private final CountDownLatch cancelRequested = new CountDownLatch(1);
+
+        PausingSimulator(int _pauseBlock) {
+            super(new BootloaderAdapter(), FLASH_SIZE, EEPROM_SIZE, PAGE_SIZE, 128);
+            pauseBlock = _pauseBlock;
+        }
+
+        @Override
+        public void sendBytes(byte[] buffer, int offset, int length) {
+            int blocks = getCommandCount('B');
+            super.sendBytes(buffer, offset, length);
+            if (blocks < pauseBlock && getCommandCount('B') >= pauseBlock) {
+                paused.countDown();
+                try {
+                    cancelRequested.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            cancelRequested.countDown();
+        }
+    }
+
+    /**
+     * Результаты шага для проверки.
+     */
+    private static class Recorder<T> implements AsyncProgrammer.Callback<T> {
+        private final CountDownLatch called = new CountDownLatch(1);
+        private Object result;
+
+        @Override
+        public void onSuccess(T _result) {
+            result = _result;
+            called.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+            result = error;
+            called.countDown();
+        }
+
+        Object await() throws InterruptedException {
+            assertTrue(called.await(10, TimeUnit.SECONDS)); // Callback may come after Future is done.
+            return result;
+        }
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void queuedStepIsCancelled() throws Exception {
+        final List<Runnable> queue = new ArrayList<>();
+        AVR109Simulator simulator = simulator(128);
+        simulator.doJob(device(), hex(firmware(4096, 20)));
+        AsyncProgrammer async = new AsyncProgrammer(simulator, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queue.add(command);
+            }
+        });
+
+        Future<Void> erase = async.erase(null);
+        Recorder<Boolean> recorder = new Recorder<>();
+        Future<Boolean> verify = async.verify(recorder);
+        assertTrue(verify.cancel(true));
+        assertTrue(verify.isCancelled());
+        assertTrue(recorder.await() instanceof CancellationException);
+
+        while (!queue.isEmpty()) {
+            queue.remove(0).run();
+        }
+        assertNull(erase.get());
+        assertEquals(1, simulator.getCommandCount('e'));
+        assertEquals(0, simulator.getCommandCount('g')); // Cancelled step never ran.
+    }
+
+    @Test
+    public void runningWriteStopsBetweenBlocks() throws Exception {
+        byte[] data = firmware(32768, 21);
+        PausingSimulator simulator = new PausingSimulator(10);
+        simulator.doJob(device(), hex(data));
+        AsyncProgrammer async = new AsyncProgrammer(simulator, executor);
+
+        async.erase(null);
+        Recorder<Void> recorder = new Recorder<>();
+        Future<Void> program = async.program(recorder);
+        assertTrue(simulator.paused.await(10, TimeUnit.SECONDS));
+        assertTrue(program.cancel(true));
+        assertTrue(program.isDone());
+        assertTrue(program.isCancelled());
+        assertTrue(simulator.getCommandCount('B') < 32768 / 128);
+        try {
+            program.get();
+            fail("Cancelled step has no result");
+        } catch (CancellationException e) {
+            assertTrue(recorder.await() instanceof CancellationException);
+        }
+
+        Future<Boolean> run = async.run(null); // Same link goes on.
+        assertTrue(run.get(10, TimeUnit.SECONDS));
+        assertFlash(simulator, data);
+    }
+
+    @Test
+    public void stepFinishedBeforeStopIsNotCancelled() throws Exception {
+        byte[] data = firmware(32768, 22);
+        PausingSimulator simulator = new PausingSimulator(32768 / 128); // Last block, no check after it.
+        simulator.doJob(device(), hex(data));
+        AsyncProgrammer async = new AsyncProgrammer(simulator, executor);
+
+        async.erase(null);
+        Future<Void> program = async.program(null);
+        assertTrue(simulator.paused.await(10, TimeUnit.SECONDS));
+        assertFalse(program.cancel(true));
+        assertFalse(program.isCancelled());
+        assertNull(program.get());
+        assertTrue(async.verify(null).get(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,69 @@
+package com.konst.bootloader;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest extends SimulatorTest {
+
+    private static byte[] sparseFirmware() {
+        byte[] data = firmware(16384, 8);
+        for (int address = 0; address < data.length; address += 32) {
+            Arrays.fill(data, address, address + 16, (byte) 0xff);
+        }
+        return data;
+    }
+
+    private static AVR109Simulator program(boolean supported, boolean offered, byte[] data) throws Exception {
+        AVR109Simulator simulator = simulator(256);
+        simulator.setCompressionSupported(supported);
+        simulator.setCompression(offered);
+        simulator.doJob(device(), hex(data));
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertFlash(simulator, data);
+        return simulator;
+    }
+
+    @Test
+    public void compressedBlocksWhenSupported() throws Exception {
+        AVR109Simulator simulator = program(true, true, sparseFirmware());
+        assertTrue(simulator.getCommandCount('Z') > 0);
+    }
+
+    @Test
+    public void plainBlocksWhenNotSupported() throws Exception {
+        AVR109Simulator simulator = program(false, true, sparseFirmware());
+        assertFalse(simulator.getSession().isCompressed());
+        assertEquals(0, simulator.getCommandCount('Z'));
+    }
+
+    @Test
+    public void plainBlocksWhenNotOffered() throws Exception {
+        AVR109Simulator simulator = program(true, false, sparseFirmware());
+        assertEquals(0, simulator.getCommandCount('z'));
+        assertEquals(0, simulator.getCommandCount('Z'));
+    }
+
+    @Test
+    public void codecRoundTrip() {
+        Random random = new Random(9);
+        for (int test = 0; test < 1000; test++) {
+            byte[] data = new byte[1 + random.nextInt(300)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (random.nextInt(3) == 0 ? random.nextInt() : i / 20);
+            }
+            byte[] packed = new byte[data.length + 8];
+            int length = PackBits.encode(data, 0, data.length, packed, 0, packed.length);
+            byte[] unpacked = new byte[data.length];
+            assertEquals(data.length, PackBits.decode(packed, 0, length, unpacked, 0, unpacked.length));
+            assertArrayEquals(data, unpacked);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.konst.bootloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaPackageTest extends SimulatorTest {
+    private static final int MANIFEST = EEPROM_SIZE - DeltaPackage.MANIFEST_SIZE;
+
+    private static DeltaPackage delta(byte[] base, byte[] target) throws Exception {
+        DeltaPackage delta = DeltaPackage.create(device(), hex(base), hex(target), new BootloaderAdapter());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        delta.write(out);
+        return DeltaPackage.read(new ByteArrayInputStream(out.toByteArray()), new BootloaderAdapter());
+    }
+
+    private static AVR109Simulator installed(byte[] base, int blockSize) throws Exception {
+        return installed(simulator(blockSize), base);
+    }
+
+    @Test
+    public void changedPagesAreWritten() throws Exception {
+        byte[] base = firmware(8192, 4);
+        byte[] target = base.clone();
+        target[10] ^= 1;
+        target[4000] ^= 1;
+        DeltaPackage delta = delta(base, target);
+        assertEquals(2, delta.getChangedPages());
+
+        AVR109Simulator simulator = installed(base, 128);
+        simulator.setFlash(2000, (byte) ~target[2000]); // Unchanged page is not written or read.
+        int exits = simulator.getCommandCount('E');
+        assertTrue(simulator.doDelta(device(), delta));
+        assertTrue(simulator.isVerified());
+        assertEquals(exits + 1, simulator.getCommandCount('E'));
+        target[2000] = simulator.getFlash(2000);
+        assertFlash(simulator, target);
+    }
+
+    @Test
+    public void otherInstalledVersionIsRefused() throws Exception {
+        byte[] base = firmware(8192, 5);
+        byte[] target = base.clone();
+        target[10] ^= 1;
+        AVR109Simulator simulator = installed(target, 128);
+        int blocks = simulator.getCommandCount('B');
+        assertFalse(simulator.doDelta(device(), delta(base, target)));
+        assertEquals(blocks, simulator.getCommandCount('B'));
+    }
+
+    @Test
+    public void interruptedFlashClearsManifest() throws Exception {
+        byte[] base = firmware(8192, 6);
+        AVR109Simulator simulator = installed(base, 128);
+        simulator.doJob(device(), hex(base));
+        simulator.erase();
+        assertEquals(0, simulator.getEEPROM(MANIFEST));
+        simulator.resetSession();
+        assertFalse(simulator.doDelta(device(), delta(base, base)));
+    }
+
+    /**
+     * Имитатор, портящий байт Flash перед чтением блока, как не записавшаяся страница.
+     */
+    private static class CorruptingSimulator extends AVR109Simulator {
+        private final int address;
+        private int corruptions;
+
+        CorruptingSimulator(int blockSize, int _address, int _corruptions) {
+            super(new BootloaderAdapter(), FLASH_SIZE, EEPROM_SIZE, PAGE_SIZE, blockSize);
+            address = _address;
+            corruptions = _corruptions;
+        }
+
+        @Override
+        public void sendBytes(byte[] buffer, int offset, int length) {
+            if (corruptions > 0 && length >= 4 && buffer[offset + length - 4] == 'g' && buffer[offset + length - 1] == 'F') {
+                corruptions--;
+                setFlash(address, (byte) ~getFlash(address));
+            }
+            super.sendBytes(buffer, offset, length);
+        }
+    }
+
+    private static AVR109Simulator installed(AVR109Simulator simulator, byte[] base) throws Exception {
+        simulator.setEraseOnBlockWrite(true);
+        simulator.setManifestAddress(MANIFEST);
+        simulator.doJob(device(), hex(base));
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        simulator.resetSession();
+        return simulator;
+    }
+
+    @Test
+    public void blockSmallerThanPageIsRefused() throws Exception {
+        byte[] base = firmware(8192, 12);
+        byte[] target = base.clone();
+        target[0x100] ^= 1;
+        AVR109Simulator simulator = simulator(64);
+        simulator.setDifferential(true); // Page erasing bootloader, whole chip in page mode.
+        installed(simulator, base);
+        int blocks = simulator.getCommandCount('B');
+        assertFalse(simulator.doDelta(device(), delta(base, target)));
+        assertEquals(blocks, simulator.getCommandCount('B'));
+        assertFlash(simulator, base);
+    }
+
+    @Test
+    public void mismatchRewritesChangedPages() throws Exception {
+        byte[] base = firmware(8192, 13);
+        byte[] target = base.clone();
+        target[0x100] ^= 1;
+        CorruptingSimulator simulator = new CorruptingSimulator(128, 0x100, 0);
+        installed(simulator, base);
+        simulator.corruptions = 1;
+        assertTrue(simulator.doDelta(device(), delta(base, target)));
+        assertTrue(simulator.isVerified());
+        assertFlash(simulator, target);
+    }
+
+    @Test
+    public void repeatedMismatchNeedsWholeChip() throws Exception {
+        byte[] base = firmware(8192, 14);
+        byte[] target = base.clone();
+        target[0x100] ^= 1;
+        CorruptingSimulator simulator = new CorruptingSimulator(128, 0x100, 0);
+        installed(simulator, base);
+        simulator.setRetries(0); // Mismatch is not read again.
+        simulator.corruptions = Integer.MAX_VALUE;
+        int exits = simulator.getCommandCount('E');
+        assertFalse(simulator.doDelta(device(), delta(base, target)));
+        assertFalse(simulator.isVerified());
+        assertEquals(exits, simulator.getCommandCount('E'));
+        assertEquals(0, simulator.getEEPROM(MANIFEST));
+    }
+}
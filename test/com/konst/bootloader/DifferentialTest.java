@@ -0,0 +1,51 @@
+package com.konst.bootloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DifferentialTest extends SimulatorTest {
+
+    @Test
+    public void onlyChangedPagesAreRewritten() throws Exception {
+        byte[] data = firmware(8192, 3);
+        AVR109Simulator simulator = simulator(128);
+        simulator.setEraseOnBlockWrite(true);
+        simulator.doJob(device(), hex(data));
+        simulator.doDeviceDependent();
+
+        data[300] ^= 1;
+        data[5000] ^= 1;
+        simulator.setDifferential(true);
+        simulator.resetSession();
+        simulator.doJob(device(), hex(data));
+        int blocks = simulator.getCommandCount('B');
+        int erases = simulator.getCommandCount('e');
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertEquals(2, simulator.getCommandCount('B') - blocks);
+        assertEquals(erases, simulator.getCommandCount('e'));
+        assertFlash(simulator, data);
+    }
+
+    @Test
+    public void blockSmallerThanPageFallsBackToChipErase() throws Exception {
+        byte[] data = firmware(8192, 11);
+        AVR109Simulator simulator = new AVR109Simulator(new BootloaderAdapter(), FLASH_SIZE, EEPROM_SIZE, PAGE_SIZE, 64);
+        simulator.setEraseOnBlockWrite(true);
+        simulator.setDifferential(true);
+        simulator.doJob(device(), hex(data));
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+
+        data[0x100] ^= 1;
+        simulator.resetSession();
+        simulator.doJob(device(), hex(data));
+        int erases = simulator.getCommandCount('e');
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertEquals(erases + 1, simulator.getCommandCount('e'));
+        assertFlash(simulator, data);
+    }
+}
@@ -0,0 +1,77 @@
+package com.konst.bootloader;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EEPROMTest extends SimulatorTest {
+    private static final int RANGE = 256;
+
+    /**
+     * Имитатор с EEPROM, отличающейся от данных в трех сериях: 10-12, 100 и 200-209.
+     */
+    private static AVR109Simulator prepared(int blockSize, byte[] data) throws Exception {
+        AVR109Simulator simulator = simulator(blockSize);
+        byte[] contents = data.clone();
+        for (int address : new int[]{10, 11, 12, 100, 200, 201, 202, 203, 204, 205, 206, 207, 208, 209}) {
+            contents[address] ^= 0x5a;
+        }
+        simulator.setEEPROM(0, contents);
+        simulator.doJob(device(), hex(firmware(1024, 30)));
+        simulator.loadEEPROM(hex(data));
+        return simulator;
+    }
+
+    private static byte[] eeprom(AVR109Simulator simulator) {
+        byte[] contents = new byte[RANGE];
+        for (int i = 0; i < RANGE; i++) {
+            contents[i] = simulator.getEEPROM(i);
+        }
+        return contents;
+    }
+
+    @Test
+    public void blockModeWritesChangedRuns() throws Exception {
+        byte[] data = firmware(RANGE, 31);
+        AVR109Simulator simulator = prepared(128, data);
+        simulator.writeEEPROM();
+        assertEquals(3, simulator.getCommandCount('B')); // One frame per run.
+        assertEquals(0, simulator.getCommandCount('D'));
+        assertArrayEquals(data, eeprom(simulator));
+        assertTrue(simulator.verifyEEPROM());
+    }
+
+    @Test
+    public void byteModeWritesRunsWithOneAddress() throws Exception {
+        byte[] data = firmware(RANGE, 32);
+        AVR109Simulator simulator = prepared(0, data);
+        simulator.identify();
+        int addresses = simulator.getCommandCount('A');
+        simulator.writeEEPROM();
+        assertEquals(RANGE, simulator.getCommandCount('d'));
+        assertEquals(14, simulator.getCommandCount('D'));
+        assertEquals(1 + 3, simulator.getCommandCount('A') - addresses); // Read start and each run.
+        assertArrayEquals(data, eeprom(simulator));
+        assertTrue(simulator.verifyEEPROM());
+    }
+
+    @Test
+    public void verifyFindsMismatch() throws Exception {
+        for (int blockSize : new int[]{0, 128}) {
+            byte[] data = firmware(RANGE, 33);
+            AVR109Simulator simulator = prepared(blockSize, data);
+            simulator.writeEEPROM();
+            assertTrue(simulator.verifyEEPROM());
+
+            byte[] contents = data.clone();
+            Arrays.fill(contents, 150, 152, (byte) ~data[150]);
+            simulator.setEEPROM(0, contents);
+            assertFalse("block " + blockSize, simulator.verifyEEPROM());
+        }
+    }
+}
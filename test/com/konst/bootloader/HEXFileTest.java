@@ -0,0 +1,111 @@
+package com.konst.bootloader;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HEXFileTest {
+    private static final int SIZE = 0x30000;
+    private static final String EOF = ":00000001FF\n";
+
+    /**
+     * Запись Intel HEX с правильной контрольной суммой.
+     */
+    private static String record(int type, int offset, int... data) {
+        StringBuilder line = new StringBuilder(String.format(":%02X%04X%02X", data.length, offset, type));
+        int checksum = data.length + (offset >> 8) + offset + type;
+        for (int b : data) {
+            line.append(String.format("%02X", b & 0xff));
+            checksum += b;
+        }
+        return line.append(String.format("%02X", -checksum & 0xff)).append('\n').toString();
+    }
+
+    private static HEXFile parse(String text) throws Exception {
+        HEXFile hexFile = new HEXFile(SIZE, 64, (byte) 0xff, new BootloaderAdapter());
+        hexFile.readFile(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+        return hexFile;
+    }
+
+    private static void assertFails(HEXFile hexFile, String text, String message) throws Exception {
+        try {
+            hexFile.readFile(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+            fail("Expected: " + message);
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static void assertFails(String text, String message) throws Exception {
+        assertFails(new HEXFile(SIZE, 64, (byte) 0xff, new BootloaderAdapter()), text, message);
+    }
+
+    @Test
+    public void dataRecordsSetUsedRange() throws Exception {
+        HEXFile hexFile = parse(record(0, 0x10, 1, 2, 3) + record(0, 0x100, 4) + EOF);
+        assertEquals(0x10, hexFile.getRangeStart());
+        assertEquals(0x100, hexFile.getRangeEnd());
+        assertEquals(2, hexFile.getData(0x11));
+        assertEquals(4, hexFile.getData(0x100));
+        assertEquals((byte) 0xff, hexFile.getData(0x13));
+    }
+
+    @Test
+    public void extendedSegmentAddress() throws Exception {
+        HEXFile hexFile = parse(record(2, 0, 0x10, 0x00) + record(0, 0x20, 0x5a) + EOF); // Base 0x1000 << 4.
+        assertEquals(0x10020, hexFile.getRangeStart());
+        assertEquals(0x5a, hexFile.getData(0x10020));
+    }
+
+    @Test
+    public void extendedLinearAddress() throws Exception {
+        HEXFile hexFile = parse(record(4, 0, 0x00, 0x02) + record(0, 0x30, 0xa5) + EOF); // Base 0x0002 << 16.
+        assertEquals(0x20030, hexFile.getRangeStart());
+        assertEquals((byte) 0xa5, hexFile.getData(0x20030));
+    }
+
+    @Test
+    public void wrongChecksumStoresNothing() throws Exception {
+        HEXFile hexFile = new HEXFile(SIZE, 64, (byte) 0xff, new BootloaderAdapter());
+        String broken = record(0, 0x200, 7, 8, 9);
+        broken = broken.substring(0, broken.length() - 3) + "00\n";
+        assertFails(hexFile, record(0, 0, 1) + broken + EOF, "Wrong checksum");
+        assertEquals(1, hexFile.getData(0));
+        for (int address = 0x200; address < 0x203; address++) {
+            assertEquals((byte) 0xff, hexFile.getData(address));
+        }
+    }
+
+    @Test
+    public void wrongHexDigit() throws Exception {
+        assertFails(":01000000G0FF\n" + EOF, "Invalid hex digit");
+    }
+
+    @Test
+    public void recordTooLong() throws Exception {
+        StringBuilder line = new StringBuilder(":");
+        for (int i = 0; i < 600; i++) {
+            line.append('0');
+        }
+        assertFails(line.append('\n').append(EOF).toString(), "record too long");
+    }
+
+    @Test
+    public void missingFields() throws Exception {
+        assertFails(":0400000001\n" + EOF, "missing fields");
+    }
+
+    @Test
+    public void missingEndOfFile() throws Exception {
+        assertFails(record(0, 0, 1, 2), "contains an EOF-record");
+    }
+
+    @Test
+    public void dataOutsideBuffer() throws Exception {
+        assertFails(record(4, 0, 0x00, 0x03) + record(0, 0, 1) + EOF, "outside buffer limits");
+    }
+}
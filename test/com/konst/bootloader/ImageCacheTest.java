@@ -0,0 +1,47 @@
+package com.konst.bootloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCacheTest extends SimulatorTest {
+    private static final int IMAGE_BYTES = FLASH_SIZE / PAGE_SIZE * 4 + 8192; // Page table and filled pages.
+
+    private static byte[] content(long seed) throws Exception {
+        return ImageCache.readAll(hex(firmware(8192, seed)));
+    }
+
+    private static void get(ImageCache cache, byte[] content) throws Exception {
+        cache.getImage(content, FLASH_SIZE, PAGE_SIZE, new BootloaderAdapter(), null);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedBySize() throws Exception {
+        ImageCache cache = new ImageCache(IMAGE_BYTES * 2 + IMAGE_BYTES / 2);
+        byte[] first = content(1);
+        byte[] second = content(2);
+        get(cache, first);
+        get(cache, second);
+        get(cache, first); // Second is now eldest.
+        get(cache, content(3));
+        assertEquals(IMAGE_BYTES * 2, cache.getBytes());
+        assertEquals(1, cache.getHits());
+
+        get(cache, first);
+        assertEquals(2, cache.getHits());
+        get(cache, second);
+        assertEquals(2, cache.getHits()); // Evicted, parsed again.
+        assertTrue(cache.getBytes() <= IMAGE_BYTES * 2 + IMAGE_BYTES / 2);
+    }
+
+    @Test
+    public void tooLargeImageIsNotKept() throws Exception {
+        ImageCache cache = new ImageCache(IMAGE_BYTES / 2);
+        byte[] content = content(4);
+        get(cache, content);
+        get(cache, content);
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getHits());
+    }
+}
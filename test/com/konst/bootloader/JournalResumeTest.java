@@ -0,0 +1,116 @@
+package com.konst.bootloader;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalResumeTest extends SimulatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Имитатор, у которого канал пропадает после заданного числа передач.
+     */
+    private static class DroppingSimulator extends AVR109Simulator {
+        private int transfers = Integer.MAX_VALUE;
+
+        DroppingSimulator() {
+            super(new BootloaderAdapter(), FLASH_SIZE, EEPROM_SIZE, PAGE_SIZE, 128);
+        }
+
+        @Override
+        public void sendBytes(byte[] buffer, int offset, int length) {
+            if (--transfers < 0) {
+                throw new IllegalStateException("Link lost");
+            }
+            super.sendBytes(buffer, offset, length);
+        }
+
+        void reconnect() {
+            transfers = Integer.MAX_VALUE;
+            while (getByte() != -1) {
+                // Replies of old connection.
+            }
+            resetSession();
+        }
+    }
+
+    private void resume(int window, ProgramJournal journal, File directory) throws Exception {
+        byte[] data = firmware(32768, 7);
+        DroppingSimulator simulator = new DroppingSimulator();
+        simulator.setWriteWindow(window);
+        simulator.setJournal(journal);
+        simulator.doJob(device(), hex(data));
+        simulator.transfers = 150;
+        try {
+            simulator.doDeviceDependent();
+            fail("Link must be lost");
+        } catch (IllegalStateException e) {
+            assertTrue(journal.getConfirmedPages() > 0);
+        }
+
+        simulator.reconnect();
+        if (directory != null) {
+            simulator.setJournal(new ProgramJournal(journal.getName(), directory)); // Application restarted.
+        }
+        simulator.doJob(device(), hex(data));
+        int erases = simulator.getCommandCount('e');
+        int blocks = simulator.getCommandCount('B');
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertEquals(erases, simulator.getCommandCount('e'));
+        assertTrue(simulator.getCommandCount('B') - blocks < 256);
+        assertFlash(simulator, data);
+    }
+
+    @Test
+    public void resumeFromMemory() throws Exception {
+        resume(1, new ProgramJournal("device"), null);
+        resume(4, new ProgramJournal("device"), null);
+    }
+
+    @Test
+    public void resumeFromDisk() throws Exception {
+        File directory = folder.newFolder();
+        resume(4, new ProgramJournal("00:11:22:33:44:55", directory), directory);
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void otherFirmwareDiscardsJournal() throws Exception {
+        File directory = folder.newFolder();
+        byte[] first = firmware(32768, 7);
+        byte[] second = firmware(32768, 8);
+        DroppingSimulator simulator = new DroppingSimulator();
+        simulator.setJournal(new ProgramJournal("device", directory));
+        simulator.doJob(device(), hex(first));
+        simulator.transfers = 150;
+        try {
+            simulator.doDeviceDependent();
+            fail("Link must be lost");
+        } catch (IllegalStateException e) {
+            assertEquals(1, directory.list().length);
+        }
+
+        simulator.reconnect();
+        simulator.setJournal(new ProgramJournal("device", directory));
+        simulator.doJob(device(), hex(second));
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+
+        simulator.reconnect(); // Bootloader started again.
+        simulator.setJournal(new ProgramJournal("device", directory));
+        simulator.doJob(device(), hex(first));
+        int erases = simulator.getCommandCount('e');
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertEquals(erases + 1, simulator.getCommandCount('e')); // Pages of first firmware are not on chip.
+        assertFlash(simulator, first);
+    }
+}
@@ -0,0 +1,49 @@
+package com.konst.bootloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelinedWriteTest extends SimulatorTest {
+
+    @Test
+    public void blockWritesInWindowAreVerified() throws Exception {
+        byte[] data = firmware(16384, 1);
+        for (int window : new int[]{1, 4, 16}) {
+            AVR109Simulator simulator = simulator(128);
+            simulator.setWriteWindow(window);
+            simulator.doJob(device(), hex(data));
+            simulator.doDeviceDependent();
+            assertTrue("window " + window, simulator.isVerified());
+            assertEquals(16384 / 128, simulator.getCommandCount('B'));
+            assertFlash(simulator, data);
+        }
+    }
+
+    @Test
+    public void pageWritesInWindowAreVerified() throws Exception {
+        byte[] data = firmware(4096, 2);
+        AVR109Simulator simulator = simulator(0);
+        simulator.setWriteWindow(4);
+        simulator.doJob(device(), hex(data));
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertEquals(4096 / 128, simulator.getCommandCount('m'));
+        assertFlash(simulator, data);
+    }
+
+    @Test
+    public void pageReadMismatchIsFound() throws Exception {
+        byte[] data = firmware(4096, 3);
+        for (int window : new int[]{1, 4}) {
+            AVR109Simulator simulator = simulator(0);
+            simulator.setWriteWindow(window);
+            simulator.doJob(device(), hex(data));
+            simulator.doDeviceDependent();
+            simulator.setFlash(4095, (byte) ~data[4095]); // Last byte, compared after reading.
+            assertFalse("window " + window, simulator.verify());
+        }
+    }
+}
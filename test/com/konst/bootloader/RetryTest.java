@@ -0,0 +1,96 @@
+package com.konst.bootloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryTest extends SimulatorTest {
+
+    private static AVR109Simulator faulty(int window, int retries) {
+        AVR109Simulator simulator = simulator(128);
+        simulator.setWriteWindow(window);
+        simulator.setRetries(retries);
+        simulator.identify();
+        simulator.setFaults(1e-4, 7);
+        return simulator;
+    }
+
+    @Test
+    public void lostRepliesAreRetried() throws Exception {
+        byte[] data = firmware(32768, 10);
+        for (int window : new int[]{1, 4}) {
+            AVR109Simulator simulator = faulty(window, 3);
+            simulator.doJob(device(), hex(data));
+            simulator.doDeviceDependent();
+            assertTrue(simulator.isVerified());
+            assertTrue(simulator.getMetrics().getRetries() > 0);
+            assertFlash(simulator, data);
+        }
+    }
+
+    @Test
+    public void noRetriesFailsFast() throws Exception {
+        AVR109Simulator simulator = faulty(1, 0);
+        simulator.doJob(device(), hex(firmware(32768, 10)));
+        try {
+            simulator.doDeviceDependent();
+            fail("Lost reply must stop programming");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("failed"));
+        }
+    }
+
+    private static int programLosing(AVR109Simulator simulator, byte[] data, int position) throws Exception {
+        simulator.doJob(device(), hex(data));
+        int erases = simulator.getCommandCount('e');
+        simulator.loseCommandByte('B', position);
+        simulator.doDeviceDependent();
+        assertTrue(simulator.isVerified());
+        assertTrue(simulator.getMetrics().getRetries() > 0);
+        assertFlash(simulator, data);
+        return simulator.getCommandCount('e') - erases;
+    }
+
+    @Test
+    public void brokenBlockErasesChipAgain() throws Exception {
+        for (int position : new int[]{4 + 60, 4 + 127, 1}) { // Data byte in the middle, last data byte, size.
+            AVR109Simulator simulator = simulator(128);
+            simulator.setRetries(3);
+            assertEquals("byte " + position, 2, programLosing(simulator, firmware(32768, 11), position));
+        }
+    }
+
+    @Test
+    public void pageErasingBootloaderRewritesBrokenBlock() throws Exception {
+        byte[] data = firmware(8192, 13);
+        AVR109Simulator simulator = simulator(128);
+        simulator.setEraseOnBlockWrite(true);
+        simulator.setRetries(3);
+        simulator.doJob(device(), hex(data));
+        simulator.doDeviceDependent();
+        simulator.setDifferential(true);
+
+        data[300] ^= 1;
+        assertEquals(0, programLosing(simulator, data, 4 + 60)); // Block is written again in place.
+        data[300] ^= 1;
+        assertEquals(1, programLosing(simulator, data, 1)); // Broken size may reach other pages.
+    }
+
+    @Test
+    public void mismatchIsNotReadAgain() throws Exception {
+        AVR109Simulator simulator = simulator(128);
+        simulator.setRetries(3);
+        simulator.identify();
+        simulator.doJob(device(), hex(firmware(32768, 12)));
+        simulator.doDeviceDependent();
+        simulator.setFlash(0, (byte) ~simulator.getFlash(0));
+        int retries = simulator.getMetrics().getRetries();
+        int reads = simulator.getCommandCount('g');
+        assertFalse(simulator.verify());
+        assertEquals(retries, simulator.getMetrics().getRetries());
+        assertTrue(simulator.getCommandCount('g') - reads < FLASH_SIZE / 128 / 2); // Stopped at first mismatch.
+    }
+}
@@ -0,0 +1,74 @@
+package com.konst.bootloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Общее для тестов программатора на имитаторе загрузчика.
+ */
+abstract class SimulatorTest {
+    static final int FLASH_SIZE = 32768;
+    static final int EEPROM_SIZE = 1024;
+    static final int PAGE_SIZE = 128;
+
+    static AVRDevice device() {
+        return new AVRDevice(FLASH_SIZE, EEPROM_SIZE, PAGE_SIZE, 0x1e, 0x95, 0x0f);
+    }
+
+    static AVR109Simulator simulator(int blockSize) {
+        AVR109Simulator simulator = new AVR109Simulator(new BootloaderAdapter(), FLASH_SIZE, EEPROM_SIZE, PAGE_SIZE, blockSize);
+        simulator.setLink(115200, 500, false);
+        return simulator;
+    }
+
+    /**
+     * Случайные данные прошивки.
+     * @param length размер, кратный 16.
+     * @param seed   начальное значение генератора.
+     * @return Данные.
+     */
+    static byte[] firmware(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Фаил HEX из данных с нулевого адреса, записи по 16 байт.
+     * @param data данные, размер кратный 16 и не больше 64 КБ.
+     * @return Поток фаила HEX.
+     */
+    static InputStream hex(byte[] data) {
+        StringBuilder text = new StringBuilder();
+        for (int address = 0; address < data.length; address += 16) {
+            int sum = 16 + (address >> 8 & 0xff) + (address & 0xff);
+            text.append(String.format(":10%04X00", address));
+            for (int i = 0; i < 16; i++) {
+                text.append(String.format("%02X", data[address + i] & 0xff));
+                sum += data[address + i] & 0xff;
+            }
+            text.append(String.format("%02X\n", -sum & 0xff));
+        }
+        text.append(":00000001FF\n");
+        return new ByteArrayInputStream(text.toString().getBytes());
+    }
+
+    /**
+     * Проверить Flash имитатора: данные с нулевого адреса, дальше 0xff.
+     * @param simulator имитатор.
+     * @param data      ожидаемые данные.
+     */
+    static void assertFlash(AVR109Simulator simulator, byte[] data) {
+        byte[] flash = new byte[FLASH_SIZE];
+        for (int i = 0; i < FLASH_SIZE; i++) {
+            flash[i] = simulator.getFlash(i);
+        }
+        byte[] expected = Arrays.copyOf(data, FLASH_SIZE);
+        Arrays.fill(expected, data.length, FLASH_SIZE, (byte) 0xff);
+        assertArrayEquals(expected, flash);
+    }
+}